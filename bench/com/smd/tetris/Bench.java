@@ -0,0 +1,163 @@
+package com.smd.tetris;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal micro benchmark harness: runs an operation in timed batches,
+ * discards the warm-up iterations and reports the mean throughput and
+ * spread of the measured ones. Results that would otherwise be dead code
+ * are passed to {@link #consume(long)}.
+ * <p>
+ * Benchmark groups can be run in forked JVMs, so code paths shared by
+ * several groups (e.g. both board engines) are compiled for the group
+ * being measured only.
+ */
+public class Bench {
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationMillis;
+	private final String filter;
+	private final boolean fork;
+	private final String group;
+
+	private static volatile long sink;
+
+	/**
+	 * A benchmarked operation. Returns the number of operations performed,
+	 * so one call may stand for a batch.
+	 */
+	public interface Op {
+		long run();
+	}
+
+	public Bench(int warmupIterations, int iterations, long iterationMillis, String filter, boolean fork, String group) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+		this.filter = filter;
+		this.fork = fork;
+		this.group = group;
+	}
+
+	/**
+	 * Builds a harness from <code>[-wi n] [-i n] [-t millis] [-f 0|1] [filter]</code>.
+	 * <code>-g group</code> is passed to forked JVMs.
+	 */
+	public static Bench fromArgs(String[] args) {
+		int warmup = 3, iterations = 5;
+		long millis = 1000;
+		String filter = null;
+		boolean fork = true;
+		String group = null;
+		for (int i = 0; i < args.length; i++) {
+			if ("-wi".equals(args[i])) warmup = Integer.parseInt(args[++i]);
+			else if ("-i".equals(args[i])) iterations = Integer.parseInt(args[++i]);
+			else if ("-t".equals(args[i])) millis = Long.parseLong(args[++i]);
+			else if ("-f".equals(args[i])) fork = Integer.parseInt(args[++i]) != 0;
+			else if ("-g".equals(args[i])) group = args[++i];
+			else filter = args[i];
+		}
+		return new Bench(warmup, iterations, millis, filter, fork && group == null, group);
+	}
+
+	/**
+	 * @return whether this JVM should only launch forks, see {@link #forkEach(Class, String[], String[])}
+	 */
+	public boolean forks() {
+		return fork;
+	}
+
+	/**
+	 * Runs <code>main</code> once per group in a new JVM with the same class
+	 * path, passing on <code>args</code>. Each fork only runs the benchmarks
+	 * whose name contains its group.
+	 */
+	public void forkEach(Class<?> main, String[] groups, String[] args) throws IOException, InterruptedException {
+		header();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (String g : groups) {
+			List<String> command = new ArrayList<String>();
+			command.add(java);
+			command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(main.getName());
+			command.addAll(Arrays.asList(args));
+			command.add("-g");
+			command.add(g);
+			int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+			if (exit != 0)
+				throw new IllegalStateException("Fork for " + g + " exited with " + exit);
+		}
+	}
+
+	public static void consume(long value) {
+		sink ^= value;
+	}
+
+	public static void consume(double value) {
+		sink ^= Double.doubleToRawLongBits(value);
+	}
+
+	public static void consume(Object value) {
+		sink ^= System.identityHashCode(value);
+	}
+
+	public boolean enabled(String name) {
+		return (filter == null || name.contains(filter)) && (group == null || name.contains(group));
+	}
+
+	/**
+	 * Prints the column titles, unless this JVM is a fork
+	 */
+	public void header() {
+		if (group != null) return;
+		System.out.println(String.format(Locale.ROOT, "%-40s %14s %10s %12s", "benchmark", "ops/s", "+/-", "ns/op"));
+	}
+
+	/**
+	 * Measures <code>op</code> and prints one result line, unless filtered out
+	 */
+	public void run(String name, Op op) {
+		if (!enabled(name)) return;
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(op);
+		}
+		double[] results = new double[iterations];
+		double mean = 0;
+		for (int i = 0; i < iterations; i++) {
+			results[i] = iteration(op);
+			mean += results[i];
+		}
+		mean /= iterations;
+		double var = 0;
+		for (double r : results) {
+			var += (r - mean) * (r - mean);
+		}
+		double stddev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+		System.out.println(String.format(Locale.ROOT, "%-40s %14.1f %10.1f %12.1f", name, mean, stddev, 1e9 / mean));
+	}
+
+	/**
+	 * @return operations per second for one timed batch
+	 */
+	private double iteration(Op op) {
+		long ops = 0;
+		long start = System.nanoTime();
+		long deadline = start + iterationMillis * 1000000L;
+		long now;
+		do {
+			ops += op.run();
+			now = System.nanoTime();
+		} while (now < deadline);
+		return ops / ((now - start) / 1e9);
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.smd.tetris;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the incrementally tracked row fill, column heights and holes of
+ * both board engines against full scans of the cells, over randomized
+ * sequences of placements, clears, row removals, copies and resets. Row
+ * removals are also checked against removing the rows one at a time, and
+ * removals of filled rows against restoring them.
+ *
+ * <pre>
+ * java -cp bin com.smd.tetris.BoardTrackingCheck [games] [seed]
+ * </pre>
+ */
+public class BoardTrackingCheck {
+
+	// rows above 64 exercise the multi word column sets
+	private static final int[][] SIZES = { {25, 10}, {8, 4}, {70, 12}, {130, 64} };
+
+	private static int checks = 0;
+
+	public static void main(String[] args) {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		Random random = new Random(seed);
+		for (int[] size : SIZES) {
+			for (int engine : new int[] { TetrisModel.ENGINE_ARRAY, TetrisModel.ENGINE_BITBOARD }) {
+				for (int g = 0; g < games; g++) {
+					play(engine, size[0], size[1], random);
+				}
+			}
+		}
+		System.out.println("OK, " + checks + " checks passed");
+	}
+
+	private static class Placed {
+		final BlockShape shape;
+		final int row, col;
+		Placed(BlockShape shape, int row, int col) {
+			this.shape = shape;
+			this.row = row;
+			this.col = col;
+		}
+	}
+
+	private static void play(int engine, int rows, int cols, Random random) {
+		TetrisBoard board = TetrisBoard.create(engine, rows, cols);
+		TetrisBoard copy = TetrisBoard.create(engine, rows, cols);
+		List<Placed> placed = new ArrayList<Placed>();
+		for (int step = 0; step < 400; step++) {
+			int op = random.nextInt(20);
+			if (op < 12) {
+				Block block = new Block(random.nextInt(Block.BLOCK_TEMPLATES.length));
+				for (int r = random.nextInt(4); r > 0; r--) block.rotateClockwise();
+				BlockShape shape = block.shape();
+				int row = -shape.topLeftR + random.nextInt(rows - shape.botRghtR + shape.topLeftR);
+				int col = -shape.topLeftC + random.nextInt(cols - shape.botRghtC + shape.topLeftC);
+				// mostly legal moves, sometimes overlapping ones
+				if (board.fits(shape, row, col) || random.nextInt(10) == 0) {
+					board.place(shape, row, col);
+					placed.add(new Placed(shape, row, col));
+				}
+			} else if (op < 15 && !placed.isEmpty()) {
+				Placed p = placed.remove(random.nextInt(placed.size()));
+				board.clear(p.shape, p.row, p.col);
+			} else if (op < 17) {
+				// fill a row with O blocks so removals see complete rows
+				int row = random.nextInt(rows - 1);
+				for (int j = 0; j < cols; j++) {
+					if (!board.isOccupied(row, j))
+						board.place(new Block(0).shape(), row - 2, j - 1 - (j == cols - 1 ? 1 : 0));
+				}
+				placed.clear();
+			} else if (op < 19) {
+				removeRows(board, random);
+				placed.clear();
+			} else if (random.nextBoolean()) {
+				copy.copyFrom(board);
+				verify(copy, random);
+			} else {
+				board.reset();
+				placed.clear();
+			}
+			verify(board, random);
+		}
+	}
+
+	/**
+	 * Removes one or more random rows and compares the cells with a reference
+	 * that removes them one by one from the bottom. When all of them were
+	 * filled they are sometimes restored and compared with the cells before.
+	 */
+	private static void removeRows(TetrisBoard board, Random random) {
+		int rows = board.rows, cols = board.cols;
+		boolean[][] expected = new boolean[rows][cols];
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < cols; j++) {
+				expected[i][j] = board.isOccupied(i, j);
+			}
+		}
+		boolean[][] before = new boolean[rows][];
+		for (int i = 0; i < rows; i++) {
+			before[i] = expected[i].clone();
+		}
+		int[] removed = new int[rows];
+		int count = 0;
+		if (board.filledRows() > 0 && random.nextBoolean()) {
+			for (int i = rows - 1; i >= 0; i--) {
+				if (board.isRowFilled(i)) removed[count++] = i;
+			}
+		} else {
+			int chance = 1 + random.nextInt(rows);
+			for (int i = rows - 1; i >= 0; i--) {
+				if (random.nextInt(chance) == 0) removed[count++] = i;
+			}
+			if (count == 0) removed[count++] = random.nextInt(rows);
+		}
+		boolean allFilled = true;
+		for (int k = 0; k < count; k++) {
+			if (!board.isRowFilled(removed[k])) allFilled = false;
+		}
+		for (int k = 0; k < count; k++) {
+			// earlier removals moved this row down by k
+			for (int l = removed[k] + k; l > 0; l--) {
+				expected[l] = expected[l-1].clone();
+			}
+		}
+		board.removeRows(removed, count);
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < cols; j++) {
+				expect(board.isOccupied(i, j) == expected[i][j], "cell " + i + "," + j + " after removing " + count + " rows");
+			}
+		}
+		if (allFilled && random.nextBoolean()) {
+			verify(board, random);
+			board.restoreRows(removed, count);
+			for (int i = 0; i < rows; i++) {
+				for (int j = 0; j < cols; j++) {
+					expect(board.isOccupied(i, j) == before[i][j], "cell " + i + "," + j + " after restoring " + count + " rows");
+				}
+			}
+		}
+	}
+
+	private static void verify(TetrisBoard board, Random random) {
+		int rows = board.rows, cols = board.cols;
+		int filled = 0;
+		for (int i = 0; i < rows; i++) {
+			int fill = 0;
+			for (int j = 0; j < cols; j++) {
+				if (board.isOccupied(i, j)) fill++;
+			}
+			expect(board.rowFill(i) == fill, "row fill of row " + i);
+			expect(board.isRowFilled(i) == (fill == cols), "filled flag of row " + i);
+			if (fill == cols) filled++;
+		}
+		expect(board.filledRows() == filled, "filled rows");
+		int holes = 0;
+		for (int j = 0; j < cols; j++) {
+			int top = 0;
+			for (; top < rows && !board.isOccupied(top, j); top++);
+			expect(board.firstOccupied(j, 0) == top, "height of column " + j);
+			for (int i = top; i < rows; i++) {
+				if (!board.isOccupied(i, j)) holes++;
+			}
+			int from = random.nextInt(rows + 1);
+			int first = from;
+			for (; first < rows && !board.isOccupied(first, j); first++);
+			expect(board.firstOccupied(j, from) == first, "first occupied in column " + j + " from " + from);
+		}
+		expect(board.holes() == holes, "holes");
+	}
+
+	private static void expect(boolean condition, String what) {
+		checks++;
+		if (!condition)
+			throw new IllegalStateException("Tracking mismatch: " + what);
+	}
+
+}
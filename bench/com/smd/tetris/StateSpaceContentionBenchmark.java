@@ -0,0 +1,114 @@
+package com.smd.tetris;
+
+import java.util.Random;
+
+import static com.smd.tetris.TetrisModel.*;
+
+/**
+ * Measures shared Q-table throughput as threads are added. Every operation
+ * looks a state up (adding it if missing) and applies an atomic action value
+ * update, which is what a {@link TetrisQLearner} does on each move.
+ * <p>
+ * Compares a plain {@link StateSpace} behind one global lock with a
+ * {@link ConcurrentStateSpace}.
+ *
+ * <pre>
+ * java -cp bin com.smd.tetris.StateSpaceContentionBenchmark [maxThreads] [millisPerRun]
+ * </pre>
+ */
+public class StateSpaceContentionBenchmark {
+
+	private static final int ROWS = 25;
+	private static final int COLS = 10;
+	private static final int NUM_STATES = 200000;
+
+	private static final int[] ACTIONS = {
+		DO_NOTHING, MOVE_LEFT, MOVE_RIGHT, ROT_CLOCK, ROT_COUNTER_CLOCK, DROP
+	};
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+		State[] states = sampleStates(NUM_STATES);
+		System.out.println("Sampled " + states.length + " states, " + Runtime.getRuntime().availableProcessors() + " cpus");
+		// warm up both tables before measuring
+		run(new LockedStateSpace(new StateCodec(ROWS, COLS)), states, 1, millis);
+		run(new ConcurrentStateSpace(new StateCodec(ROWS, COLS)), states, 1, millis);
+		System.out.println(String.format("%-8s %8s %16s", "space", "threads", "lookups/sec"));
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			report("locked", threads, run(new LockedStateSpace(new StateCodec(ROWS, COLS)), states, threads, millis));
+			report("striped", threads, run(new ConcurrentStateSpace(new StateCodec(ROWS, COLS)), states, threads, millis));
+		}
+	}
+
+	private static void report(String name, int threads, double opsPerSec) {
+		System.out.println(String.format("%-8s %8d %16.0f", name, threads, opsPerSec));
+	}
+
+	/**
+	 * States visited by random play, so keys follow the distribution seen
+	 * during training
+	 */
+	private static State[] sampleStates(int n) {
+		TetrisModel model = new TetrisModel(ROWS, COLS, ROWS - 5, ACTIONS, true, ENGINE_BITBOARD);
+		Random random = new Random(1);
+		State[] states = new State[n];
+		int i = 0;
+		while (i < n) {
+			model.reset();
+			while (i < n && !model.isFull()) {
+				model.newBlock(new Block(random.nextInt(7)), 0, COLS / 2 - 2);
+				while (i < n && !model.reachedLowestPossible()) {
+					model.takeAction(ACTIONS[random.nextInt(ACTIONS.length)]);
+					model.takeAction(MOVE_DOWN);
+					states[i++] = model.getState();
+				}
+				if (model.getRowsCompleted()[0] > 0) model.compressRowsCompleted();
+			}
+		}
+		return states;
+	}
+
+	private static double run(final StateSpace space, final State[] states, int threads, final long millis)
+			throws InterruptedException {
+		final long[] counts = new long[threads];
+		final long deadline = System.nanoTime() + millis * 1000000L;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			workers[t] = new Thread() {
+				public void run() {
+					Random random = new Random(id);
+					long ops = 0;
+					while ((ops & 1023) != 0 || System.nanoTime() < deadline) {
+						com.smd.tetris.State state = space.lookupState(states[random.nextInt(states.length)], true);
+						state.updateActionReward(ACTIONS[random.nextInt(ACTIONS.length)], 0.2, 1.0);
+						ops++;
+					}
+					counts[id] = ops;
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) worker.start();
+		for (Thread worker : workers) worker.join();
+		double secs = (System.nanoTime() - start) / 1e9;
+		long total = 0;
+		for (long c : counts) total += c;
+		return total / secs;
+	}
+
+	/**
+	 * Baseline: the single threaded table behind one lock
+	 */
+	private static class LockedStateSpace extends StateSpace {
+		LockedStateSpace(StateCodec codec) {
+			super(codec);
+		}
+		public synchronized State lookupState(State state, boolean addIfNotPresent) {
+			return super.lookupState(state, addIfNotPresent);
+		}
+	}
+
+}
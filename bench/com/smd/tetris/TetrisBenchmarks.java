@@ -0,0 +1,473 @@
+package com.smd.tetris;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static com.smd.tetris.TetrisModel.*;
+
+/**
+ * Benchmarks for the model and learner hot paths. Boards, blocks and keys
+ * are generated from {@link #SEED}, so every run measures the same work.
+ *
+ * <pre>
+ * java -Xmx2g -cp bin com.smd.tetris.TetrisBenchmarks [-wi n] [-i n] [-t millis] [-f 0|1] [filter]
+ * </pre>
+ *
+ * <code>filter</code> selects the benchmarks whose name contains it, e.g.
+ * <code>action/</code> or <code>stateSpace/</code>. Every group in {@link #GROUPS}
+ * runs in a forked JVM unless <code>-f 0</code> is given.
+ */
+public class TetrisBenchmarks {
+
+	static final long SEED = 42;
+
+	static final int ROWS = 25;
+	static final int COLS = 10;
+	static final int DEPTH = 20;
+	static final int START_COL = COLS / 2 - 2;
+
+	static final int[] ACTIONS = {
+		DO_NOTHING, MOVE_LEFT, MOVE_RIGHT, ROT_CLOCK, ROT_COUNTER_CLOCK, DROP
+	};
+
+	static final int[] ENGINES = { ENGINE_ARRAY, ENGINE_BITBOARD };
+	static final String[] ENGINE_NAMES = { "array", "bitboard" };
+
+	// fill levels for the state benchmarks, as a fraction of the allowed depth
+	static final int[] FILL_PERCENT = { 0, 25, 50, 75 };
+
+	static final int[] STATE_SPACE_SIZES = { 10000, 100000, 1000000 };
+
+	// each group runs in its own JVM, see Bench#forkEach
+	static final String[] GROUPS = { "/array", "/bitboard", "stateSpace/", "learner/" };
+
+	public static void main(String[] args) throws Exception {
+		Bench bench = Bench.fromArgs(args);
+		if (bench.forks()) {
+			bench.forkEach(TetrisBenchmarks.class, GROUPS, args);
+			return;
+		}
+		bench.header();
+		for (int e = 0; e < ENGINES.length; e++) {
+			actions(bench, ENGINES[e], ENGINE_NAMES[e]);
+			compress(bench, ENGINES[e], ENGINE_NAMES[e]);
+			states(bench, ENGINES[e], ENGINE_NAMES[e]);
+			game(bench, ENGINES[e], ENGINE_NAMES[e]);
+			fork(bench, ENGINES[e], ENGINE_NAMES[e]);
+		}
+		stateSpace(bench);
+		learner(bench);
+	}
+
+	/**
+	 * Resets the model and stacks two row high bands of O blocks from the
+	 * bottom until at most <code>percent</code> of the allowed depth is
+	 * occupied, then starts a new block near the top. Each band leaves a
+	 * seeded random pair of columns open, so no row is complete.
+	 */
+	static void fill(TetrisModel model, Random random, int percent) {
+		model.reset();
+		int target = DEPTH * COLS * percent / 100;
+		int bandCells = (COLS / 2 - 1) * 4;
+		int row = ROWS - 4;
+		for (int cells = bandCells; cells <= target; cells += bandCells) {
+			int gap = random.nextInt(COLS / 2);
+			for (int k = 0; k < COLS / 2; k++) {
+				if (k != gap)
+					model.newBlock(new Block(0), row, 2*k - 1);
+			}
+			row -= 2;
+		}
+		model.newBlock(new Block(random.nextInt(7)), 0, START_COL);
+	}
+
+	private static void actions(Bench bench, int engine, String engineName) {
+		final TetrisModel model = new TetrisModel(ROWS, COLS, DEPTH, ACTIONS, true, engine);
+		final Random random = new Random(SEED);
+		String prefix = "action/" + engineName + "/";
+
+		// in place actions on a block floating above a quarter filled board
+		fill(model, random, 25);
+		bench.run(prefix + "DO_NOTHING", new Bench.Op() {
+			public long run() {
+				for (int i = 0; i < 100; i++) Bench.consume(model.takeAction(DO_NOTHING) ? 1 : 0);
+				return 100;
+			}
+		});
+		bench.run(prefix + "MOVE_LEFT+MOVE_RIGHT", new Bench.Op() {
+			public long run() {
+				for (int i = 0; i < 50; i++) {
+					Bench.consume(model.takeAction(MOVE_LEFT) ? 1 : 0);
+					Bench.consume(model.takeAction(MOVE_RIGHT) ? 1 : 0);
+				}
+				return 100;
+			}
+		});
+		bench.run(prefix + "ROT_CLOCK", new Bench.Op() {
+			public long run() {
+				for (int i = 0; i < 100; i++) Bench.consume(model.takeAction(ROT_CLOCK) ? 1 : 0);
+				return 100;
+			}
+		});
+		bench.run(prefix + "ROT_COUNTER_CLOCK", new Bench.Op() {
+			public long run() {
+				for (int i = 0; i < 100; i++) Bench.consume(model.takeAction(ROT_COUNTER_CLOCK) ? 1 : 0);
+				return 100;
+			}
+		});
+
+		// actions that land blocks, the board is refilled when full
+		fill(model, random, 0);
+		bench.run(prefix + "MOVE_DOWN", new Bench.Op() {
+			public long run() {
+				if (model.reachedLowestPossible()) nextBlock(model, random);
+				model.takeAction(MOVE_DOWN);
+				return 1;
+			}
+		});
+		fill(model, random, 0);
+		bench.run(prefix + "DROP", new Bench.Op() {
+			public long run() {
+				nextBlock(model, random);
+				model.takeAction(DROP);
+				return 1;
+			}
+		});
+	}
+
+	/**
+	 * Saving and restoring the game on a half filled board, and copying it
+	 * into a fork, as a rollout does before every simulated game
+	 */
+	private static void fork(Bench bench, int engine, String engineName) {
+		final TetrisModel model = new TetrisModel(ROWS, COLS, DEPTH, ACTIONS, true, engine);
+		model.setSeed(SEED);
+		fill(model, new Random(SEED), 50);
+		final ModelState state = model.newState();
+		bench.run("fork/" + engineName + "/save+restore", new Bench.Op() {
+			public long run() {
+				model.save(state);
+				model.restore(state);
+				return 1;
+			}
+		});
+		final TetrisModel fork = model.fork();
+		bench.run("fork/" + engineName + "/copyFrom", new Bench.Op() {
+			public long run() {
+				fork.copyFrom(model);
+				return 1;
+			}
+		});
+	}
+
+	private static void nextBlock(TetrisModel model, Random random) {
+		if (model.getRowsCompleted()[0] > 0) model.compressRowsCompleted();
+		if (model.isFull()) model.reset();
+		int col = START_COL + random.nextInt(5) - 2;
+		model.newBlock(new Block(random.nextInt(7)), 0, col);
+		if (model.isFull()) {
+			model.reset();
+			model.newBlock(new Block(random.nextInt(7)), 0, col);
+		}
+	}
+
+	private static void compress(Bench bench, int engine, String engineName) {
+		final TetrisModel model = new TetrisModel(ROWS, COLS, DEPTH, ACTIONS, true, engine);
+		fill(model, new Random(SEED), 0);
+		// two full rows of O blocks at the bottom of an otherwise empty board
+		bench.run("compress/" + engineName + "/2rows", new Bench.Op() {
+			public long run() {
+				for (int c = -1; c < COLS - 1; c += 2)
+					model.newBlock(new Block(0), ROWS - 4, c);
+				Bench.consume(model.getRowsCompleted()[0]);
+				return model.compressRowsCompleted() > 0 ? 1 : 0;
+			}
+		});
+	}
+
+	private static void states(Bench bench, int engine, String engineName) {
+		for (int percent : FILL_PERCENT) {
+			final TetrisModel model = new TetrisModel(ROWS, COLS, DEPTH, ACTIONS, true, engine);
+			fill(model, new Random(SEED), percent);
+			final LookAhead out = new LookAhead(model);
+			bench.run("getState/" + engineName + "/fill" + percent, new Bench.Op() {
+				public long run() {
+					Bench.consume(model.getState());
+					return 1;
+				}
+			});
+			bench.run("getState(LookAhead)/" + engineName + "/fill" + percent, new Bench.Op() {
+				public long run() {
+					model.getState(out);
+					Bench.consume(out.stateReward);
+					return 1;
+				}
+			});
+			bench.run("getFeatures/" + engineName + "/fill" + percent, new Bench.Op() {
+				public long run() {
+					Bench.consume(model.getFeatures());
+					return 1;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Complete games with random moves, one op per game. Every op replays
+	 * the same pieces and moves.
+	 */
+	private static void game(Bench bench, int engine, String engineName) throws IOException {
+		final TetrisModel model = new TetrisModel(ROWS, COLS, DEPTH, ACTIONS, true, engine);
+		final TetrisRandomLearner learner = new TetrisRandomLearner(model);
+		final PieceSequence pieces = new PieceSequence(SEED);
+		model.setPieceSequence(pieces);
+		bench.run("game/random/" + engineName, new Bench.Op() {
+			public long run() {
+				model.setSeed(SEED);
+				pieces.rewind();
+				Bench.consume(TetrisRunner.playEpoch(model, learner, START_COL, 0));
+				return 1;
+			}
+		});
+		// the same pieces placed in one step each
+		final Placement[] placements = new Placement[model.getMaxPlacements()];
+		bench.run("game/placement/random/" + engineName, new Bench.Op() {
+			public long run() {
+				model.setSeed(SEED);
+				pieces.rewind();
+				Bench.consume(TetrisRunner.playPlacementEpoch(model, learner, placements, START_COL, 0));
+				return 1;
+			}
+		});
+		// the step mode game again, written to a game log
+		if (!bench.enabled("game/recorded/random/" + engineName)) return;
+		File log = File.createTempFile("tetris-bench", ".log");
+		log.deleteOnExit();
+		GameRecorder recorder = new GameRecorder(model, log);
+		try {
+			bench.run("game/recorded/random/" + engineName, new Bench.Op() {
+				public long run() {
+					model.setSeed(SEED);
+					pieces.rewind();
+					Bench.consume(TetrisRunner.playEpoch(model, learner, START_COL, 0));
+					return 1;
+				}
+			});
+		} finally {
+			recorder.close();
+			log.delete();
+		}
+	}
+
+	private static void stateSpace(Bench bench) {
+		final StateCodec codec = new StateCodec(ROWS, COLS);
+		for (final int size : STATE_SPACE_SIZES) {
+			String suffix = "/" + (size >= 1000000 ? size / 1000000 + "M" : size / 1000 + "k");
+			if (!bench.enabled("stateSpace/lookup" + suffix) && !bench.enabled("stateSpace/insert" + suffix))
+				continue;
+			final State[] states = randomStates(codec, size, new Random(SEED));
+			final StateSpace full = new StateSpace(codec);
+			for (State state : states) full.lookupState(state, true);
+			final Random random = new Random(SEED);
+			bench.run("stateSpace/lookup" + suffix, new Bench.Op() {
+				public long run() {
+					for (int i = 0; i < 100; i++) {
+						State state = states[random.nextInt(size)];
+						Bench.consume(full.lookupState(state.keyLo, state.keyHi));
+					}
+					return 100;
+				}
+			});
+			// fills a fresh table, growing it from the initial capacity
+			bench.run("stateSpace/insert" + suffix, new Bench.Op() {
+				public long run() {
+					StateSpace space = new StateSpace(codec);
+					for (State state : states) space.lookupState(state, true);
+					Bench.consume(space.size());
+					return size;
+				}
+			});
+		}
+	}
+
+	/**
+	 * States with distinct random keys restricted to the bits the state space
+	 * compares
+	 */
+	static State[] randomStates(StateCodec codec, int n, Random random) {
+		State[] states = new State[n];
+		for (int i = 0; i < n; i++) {
+			states[i] = new State(codec, random.nextLong() & codec.relevantMaskLo, random.nextLong() & codec.relevantMaskHi);
+		}
+		return states;
+	}
+
+	private static void learner(Bench bench) {
+		qeval(bench);
+		replay(bench);
+		beam(bench);
+		if (!bench.enabled("learner/approx/")) return;
+		final TetrisModel model = new TetrisModel(ROWS, COLS, DEPTH, ACTIONS, true, ENGINE_BITBOARD);
+		model.setSeed(SEED);
+		final TetrisApproxQLearner learner = new TetrisApproxQLearner(model, ACTIONS);
+		// a little training so the weights are not all zero
+		for (int i = 0; i < 20; i++)
+			TetrisRunner.playEpoch(model, learner, START_COL, 0);
+		learner.stopTrainingQuietly();
+		fill(model, new Random(SEED), 25);
+		bench.run("learner/approx/proposeAction", new Bench.Op() {
+			public long run() {
+				Bench.consume(learner.proposeAction());
+				return 1;
+			}
+		});
+		final Placement[] placements = new Placement[model.getMaxPlacements()];
+		final int count = model.getPlacements(placements);
+		bench.run("learner/approx/proposePlacement", new Bench.Op() {
+			public long run() {
+				Bench.consume(learner.proposePlacement(placements, count));
+				return 1;
+			}
+		});
+	}
+
+	/**
+	 * One beam search decision over the current and the next block on a
+	 * quarter filled board, at several beam widths
+	 */
+	private static void beam(Bench bench) {
+		if (!bench.enabled("learner/beam/")) return;
+		final TetrisModel model = new TetrisModel(ROWS, COLS, DEPTH, ACTIONS, true, ENGINE_BITBOARD);
+		model.setSeed(SEED);
+		fill(model, new Random(SEED), 25);
+		final Placement[] placements = new Placement[model.getMaxPlacements()];
+		final int count = model.getPlacements(placements);
+		for (int width : new int[] { 1, 8, 32 }) {
+			final TetrisBeamPlanner planner = new TetrisBeamPlanner(model, TetrisBeamPlanner.REWARD, width, 0, START_COL);
+			bench.run("learner/beam/proposePlacement/" + width, new Bench.Op() {
+				public long run() {
+					Bench.consume(planner.proposePlacement(placements, count));
+					return 1;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Adding to and reading from a full off-heap replay buffer of a million
+	 * transitions
+	 */
+	private static void replay(Bench bench) {
+		if (!bench.enabled("learner/replay/")) return;
+		final int numFeatures = new StateCodec(ROWS, COLS).numFeatures;
+		final int capacity = 1000000;
+		final ReplayBuffer replay = new ReplayBuffer(capacity, numFeatures);
+		final Random random = new Random(SEED);
+		final double[] features = new double[numFeatures];
+		final double[] next = new double[numFeatures];
+		for (int j = 0; j < numFeatures; j++) {
+			features[j] = random.nextDouble();
+			next[j] = random.nextDouble();
+		}
+		for (int i = 0; i < capacity; i++) {
+			replay.add(features, DROP, i, next, (i & 7) == 0);
+		}
+		bench.run("learner/replay/add", new Bench.Op() {
+			public long run() {
+				for (int i = 0; i < 100; i++) replay.add(features, DROP, i, next, false);
+				return 100;
+			}
+		});
+		bench.run("learner/replay/read", new Bench.Op() {
+			public long run() {
+				for (int i = 0; i < 100; i++) {
+					int index = random.nextInt(capacity);
+					Bench.consume(replay.read(index, features, next) ? 1 : 0);
+					Bench.consume(replay.reward(index));
+				}
+				return 100;
+			}
+		});
+	}
+
+	/**
+	 * Scoring the candidates of one decision, the look-ahead actions or the
+	 * placements of a block: one normalize and dot product per candidate as
+	 * the learner used to, against {@link TetrisApproxQLearner#batchQ}
+	 */
+	private static void qeval(Bench bench) {
+		StateCodec codec = new StateCodec(ROWS, COLS);
+		final int stride = codec.featureLength;
+		final int numFeatures = codec.numFeatures;
+		Random random = new Random(SEED);
+		final double[] weights = new double[numFeatures];
+		for (int j = 0; j < numFeatures; j++) weights[j] = random.nextGaussian();
+		for (final int count : new int[] { ACTIONS.length, 4 * COLS }) {
+			if (!bench.enabled("learner/qeval/loop/" + count) && !bench.enabled("learner/qeval/batch/" + count))
+				continue;
+			final double[] matrix = new double[count * stride];
+			final double[][] rows = new double[count][stride];
+			for (int i = 0; i < count; i++) {
+				for (int j = 0; j < stride; j++) {
+					rows[i][j] = random.nextInt(3) == 0 ? 0 : random.nextInt(20);
+				}
+				System.arraycopy(rows[i], 0, matrix, i * stride, stride);
+			}
+			final double[] q = new double[count];
+			final double[] normalized = new double[stride];
+			TetrisApproxQLearner.batchQ(matrix, stride, count, weights, q);
+			for (int i = 0; i < count; i++) {
+				double expected = loopQ(rows[i], normalized, weights);
+				if (Math.abs(q[i] - expected) > 1e-9 * Math.max(1, Math.abs(expected)))
+					throw new IllegalStateException("batchQ differs for row " + i + ": " + q[i] + " vs " + expected);
+			}
+			bench.run("learner/qeval/loop/" + count, new Bench.Op() {
+				public long run() {
+					double best = Double.NEGATIVE_INFINITY;
+					for (int i = 0; i < count; i++) {
+						best = Math.max(best, loopQ(rows[i], normalized, weights));
+					}
+					Bench.consume(best);
+					return 1;
+				}
+			});
+			bench.run("learner/qeval/batch/" + count, new Bench.Op() {
+				public long run() {
+					TetrisApproxQLearner.batchQ(matrix, stride, count, weights, q);
+					double best = Double.NEGATIVE_INFINITY;
+					for (int i = 0; i < count; i++) {
+						best = Math.max(best, q[i]);
+					}
+					Bench.consume(best);
+					return 1;
+				}
+			});
+		}
+	}
+
+	/**
+	 * The learner's former per candidate path: L2 normalize into a buffer,
+	 * then take the dot product with the weights
+	 */
+	static double loopQ(double[] features, double[] normalized, double[] weights) {
+		double sum = 0;
+		for (double v : features) {
+			sum += v*v;
+		}
+		if (sum == 0.0) {
+			System.arraycopy(features, 0, normalized, 0, features.length);
+		} else {
+			sum = Math.sqrt(sum);
+			for (int i = 0; i < normalized.length; i++) {
+				normalized[i] = features[i] / sum;
+			}
+		}
+		double q = 0;
+		for (int i = 0; i < weights.length; i++) {
+			q += normalized[i] * weights[i];
+		}
+		return q;
+	}
+
+}
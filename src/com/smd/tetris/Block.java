@@ -1,92 +1,47 @@
 package com.smd.tetris;
 
+/**
+ * A block is a type and an orientation. The matrices, bounds and masks for
+ * all orientations are precomputed in {@link #SHAPES}, so rotating only
+ * changes the orientation index.
+ */
 public class Block {
 	
 	protected final int type;
-	protected int angle = 0;
-	protected final int[][] blockMat;
-	
-	protected int topLeftR, topLeftC;
-	protected int botRghtR, botRghtC;
+	private int orientation = 0;
 	
 	public Block(int type) {
 		this.type = type;
-		int[][] template = BLOCK_TEMPLATES[type];
-		int dim = template.length;
-		if (template[0].length > dim)
-			dim = template[0].length;
-		this.blockMat = new int[dim][dim];
-		for (int i = 0; i < template.length; i++) {
-			System.arraycopy(template[i], 0, blockMat[i], 0, template[i].length);
-		}
-		setBorders();
 	}
 	
-	private void setBorders() {
-		topLeftR = Integer.MAX_VALUE; topLeftC = Integer.MAX_VALUE;
-		botRghtR = -1; botRghtC = -1;
-		for (int i = 0; i < blockMat.length; i++) {
-			for (int j = 0; j < blockMat[i].length; j++) {
-				if (blockMat[i][j] > 0) {
-					if (topLeftR > i) {
-						topLeftR = i;
-					}
-					if(botRghtR < i) {
-						botRghtR = i;
-					}
-					if (topLeftC > j) {
-						topLeftC = j;
-					}
-					if(botRghtC < j) {
-						botRghtC = j;
-					}
-				}
-			}
-		}
+	/**
+	 * @return shape of the block in its current orientation
+	 */
+	BlockShape shape() {
+		return SHAPES[type][orientation];
 	}
 	
-	public void rotateClockwise() {
-		angle = (360 + angle - 90) % 360;
-		adjustBlock();
+	/**
+	 * @param rot 0 - current orientation, 1 - rotated clockwise, -1 - rotated counter clockwise
+	 * @return shape the block would have after the rotation
+	 */
+	BlockShape shape(int rot) {
+		return SHAPES[type][(orientation - rot) & 3];
 	}
 	
-	public void rotateCounterClockwise() {
-		angle = (angle + 90) % 360;
-		adjustBlock();
+	/**
+	 * @return shape of a block of <code>type</code> in <code>orientation</code>
+	 */
+	static BlockShape shape(int type, int orientation) {
+		return SHAPES[type][orientation & 3];
 	}
 	
-	private void adjustBlock() {
-		int[][] template = BLOCK_TEMPLATES[type];
-		//System.out.println("Template: \n" + prettyString(template) + "\n");
-		switch (angle) {
-		case 0:
-			for (int i = 0; i < template.length; i++) {
-				System.arraycopy(template[i], 0, blockMat[i], 0, template[i].length);
-			}
-			break;
-		case 90:
-			for (int r = 0; r < blockMat.length; r++) {
-				for (int c = 0; c < blockMat[r].length; c++) {
-					blockMat[r][c] = template[c][blockMat[r].length - r - 1];
-				}
-			}
-			break;
-		case 180:
-			for (int r = 0; r < blockMat.length; r++) {
-				for (int c = 0; c < blockMat[r].length; c++) {
-					blockMat[r][c] = template[blockMat[r].length - r - 1][blockMat[r].length - c - 1];
-				}
-			}
-			break;
-		case 270:
-			for (int r = 0; r < blockMat.length; r++) {
-				for (int c = 0; c < blockMat[r].length; c++) {
-					blockMat[r][c] = template[blockMat[r].length - c - 1][r];
-				}
-			}
-			break;
-		}
-		setBorders();
+	public void rotateClockwise() {
+		orientation = (orientation + 3) & 3;
+	}
+	
+	public void rotateCounterClockwise() {
+		orientation = (orientation + 1) & 3;
 	}
 	
 	/**
@@ -95,11 +50,15 @@ public class Block {
 	 * @return rotation angle ( 0 - 0, 1 - 90, 2 - 180, 3 - 270 )
 	 */
 	public int getOrientation() {
-		return angle / 90;
+		return orientation;
+	}
+	
+	void setOrientation(int orientation) {
+		this.orientation = orientation & 3;
 	}
 	
 	public String prettyString() {
-		return prettyString(blockMat);
+		return prettyString(shape().blockMat);
 	}
 	
 	private String prettyString(int[][] mat) {
@@ -115,7 +74,8 @@ public class Block {
 	
 	@Override
 	public String toString() {
-		return "Block [angle=" + angle + ", type=" + type + ",(" + topLeftR + "," + topLeftC + ")-(" + botRghtR + "," + botRghtC + ")]";
+		BlockShape shape = shape();
+		return "Block [angle=" + (orientation * 90) + ", type=" + type + ",(" + shape.topLeftR + "," + shape.topLeftC + ")-(" + shape.botRghtR + "," + shape.botRghtC + ")]";
 	}
 
 	protected static int[][][] BLOCK_TEMPLATES = {
@@ -185,4 +145,48 @@ public class Block {
 		}
 	}
 	
+	/**
+	 * All types in all four orientations, indexed [type][orientation]. The
+	 * orientation is the counter clockwise rotation in steps of 90 degrees.
+	 */
+	private static final BlockShape SHAPES[][];
+	static {
+		SHAPES = new BlockShape[BLOCK_TEMPLATES.length][4];
+		for (int t = 0; t < SHAPES.length; t++) {
+			int[][] template = BLOCK_TEMPLATES[t];
+			int n = template.length;
+			for (int o = 0; o < 4; o++) {
+				int[][] blockMat = new int[n][n];
+				for (int r = 0; r < n; r++) {
+					for (int c = 0; c < n; c++) {
+						blockMat[rotatedRow(o, r, c, n)][rotatedCol(o, r, c, n)] = template[r][c];
+					}
+				}
+				int pivotR = rotatedRow(o, PIVOTS[t][0], PIVOTS[t][1], n);
+				int pivotC = rotatedCol(o, PIVOTS[t][0], PIVOTS[t][1], n);
+				SHAPES[t][o] = new BlockShape(t, o, blockMat, pivotR, pivotC);
+			}
+		}
+	}
+	
+	/** Row of template cell (r,c) once rotated by o*90 degrees counter clockwise */
+	private static int rotatedRow(int o, int r, int c, int n) {
+		switch (o) {
+		case 1: return n - c - 1;
+		case 2: return n - r - 1;
+		case 3: return c;
+		default: return r;
+		}
+	}
+	
+	/** Column of template cell (r,c) once rotated by o*90 degrees counter clockwise */
+	private static int rotatedCol(int o, int r, int c, int n) {
+		switch (o) {
+		case 1: return r;
+		case 2: return n - c - 1;
+		case 3: return n - r - 1;
+		default: return c;
+		}
+	}
+	
 }
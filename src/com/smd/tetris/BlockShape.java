@@ -0,0 +1,98 @@
+package com.smd.tetris;
+
+/**
+ * A block type in one orientation: its 5x5 matrix, bounding box, row masks
+ * and pivot. All shapes are built once when {@link Block} is loaded and are
+ * shared by every block, so none of the arrays may be modified.
+ */
+final class BlockShape {
+	
+	final int type;
+	final int orientation;
+	final int[][] blockMat;
+	
+	final int topLeftR, topLeftC;
+	final int botRghtR, botRghtC;
+	
+	/** Occupied cells of each matrix row, bit j set when column j is filled */
+	final long[] rowMasks;
+	
+	final int pivotR, pivotC;
+	
+	/**
+	 * Cells with no cell of the shape right below them, the ones that hit
+	 * the stack first when the shape falls
+	 */
+	final int[] edgeRows, edgeCols;
+	/** Whether the cells of every column form one unbroken run */
+	final boolean solidColumns;
+	
+	BlockShape(int type, int orientation, int[][] blockMat, int pivotR, int pivotC) {
+		this.type = type;
+		this.orientation = orientation;
+		this.blockMat = blockMat;
+		this.pivotR = pivotR;
+		this.pivotC = pivotC;
+		int tlR = Integer.MAX_VALUE, tlC = Integer.MAX_VALUE;
+		int brR = -1, brC = -1;
+		this.rowMasks = new long[blockMat.length];
+		for (int i = 0; i < blockMat.length; i++) {
+			for (int j = 0; j < blockMat[i].length; j++) {
+				if (blockMat[i][j] > 0) {
+					tlR = Math.min(tlR, i);
+					brR = Math.max(brR, i);
+					tlC = Math.min(tlC, j);
+					brC = Math.max(brC, j);
+					rowMasks[i] |= 1L << j;
+				}
+			}
+		}
+		this.topLeftR = tlR;
+		this.topLeftC = tlC;
+		this.botRghtR = brR;
+		this.botRghtC = brC;
+		int edges = 0;
+		boolean solid = true;
+		for (int j = 0; j < blockMat[0].length; j++) {
+			int runs = 0;
+			for (int i = 0; i < blockMat.length; i++) {
+				if (filled(i, j) && !filled(i+1, j)) {
+					edges++;
+					runs++;
+				}
+			}
+			if (runs > 1) solid = false;
+		}
+		this.solidColumns = solid;
+		this.edgeRows = new int[edges];
+		this.edgeCols = new int[edges];
+		int e = 0;
+		for (int i = 0; i < blockMat.length; i++) {
+			for (int j = 0; j < blockMat[i].length; j++) {
+				if (filled(i, j) && !filled(i+1, j)) {
+					edgeRows[e] = i;
+					edgeCols[e] = j;
+					e++;
+				}
+			}
+		}
+	}
+	
+	private boolean filled(int i, int j) {
+		return i < blockMat.length && j < blockMat[i].length && blockMat[i][j] > 0;
+	}
+	
+	/**
+	 * @return whether both shapes cover the same cells relative to their
+	 * bounding boxes, e.g. the orientations of the square block
+	 */
+	boolean sameCells(BlockShape other) {
+		if (botRghtR - topLeftR != other.botRghtR - other.topLeftR) return false;
+		for (int i = 0; i <= botRghtR - topLeftR; i++) {
+			if (rowMasks[topLeftR + i] >>> topLeftC != other.rowMasks[other.topLeftR + i] >>> other.topLeftC)
+				return false;
+		}
+		return true;
+	}
+	
+}
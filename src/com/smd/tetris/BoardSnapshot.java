@@ -0,0 +1,34 @@
+package com.smd.tetris;
+
+/**
+ * Immutable picture of a board taken by {@link TetrisModel#snapshot()}: the
+ * block type of every occupied cell, the falling block included. Snapshots
+ * may be handed to another thread, e.g. the Swing event thread, without
+ * further synchronization.
+ */
+public final class BoardSnapshot {
+
+	public static final int EMPTY = -1;
+
+	public final int rows;
+	public final int cols;
+	private final byte[] cells;
+
+	/**
+	 * @param cells block type or {@link #EMPTY} of each cell, row by row. Kept,
+	 * not copied.
+	 */
+	BoardSnapshot(int rows, int cols, byte[] cells) {
+		this.rows = rows;
+		this.cols = cols;
+		this.cells = cells;
+	}
+
+	/**
+	 * @return type of the block covering the cell, or {@link #EMPTY}
+	 */
+	public int cell(int row, int col) {
+		return cells[row * cols + col];
+	}
+
+}
@@ -0,0 +1,256 @@
+package com.smd.tetris;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary checkpoints of what the learners have learned: the weight vector
+ * of {@link TetrisApproxQLearner} and the states of a {@link StateSpace}
+ * used by {@link TetrisQLearner}.
+ * <p>
+ * Every file starts with a 64 byte header holding a magic number, the
+ * format version, the kind of checkpoint and the feature layout it was
+ * written for: board size, number of features, feature vector length,
+ * number of actions and the relevant key masks of the {@link StateCodec}.
+ * A file whose layout differs from the codec it is loaded for is rejected
+ * with an {@link IllegalArgumentException}.
+ * <p>
+ * A state space is stored as the open addressing table it is probed with,
+ * one fixed size slot per entry, so {@link #mapStateSpace(File, StateCodec)}
+ * can map it read-only and look states up in place instead of reading
+ * millions of objects first. All numbers are little endian.
+ */
+public final class Checkpoint {
+
+	private static final int MAGIC = 0x4B435154; // "TQCK"
+	public static final int VERSION = 1;
+
+	static final int KIND_WEIGHTS = 1;
+	static final int KIND_STATES = 2;
+
+	static final int HEADER_BYTES = 64;
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_KIND = 8;
+	private static final int H_ROWS = 12;
+	private static final int H_COLS = 16;
+	private static final int H_FEATURES = 20;
+	private static final int H_FEATURE_LENGTH = 24;
+	private static final int H_ACTIONS = 28;
+	private static final int H_MASK_LO = 32;
+	private static final int H_MASK_HI = 40;
+	private static final int H_COUNT = 48;
+	private static final int H_CAPACITY = 56;
+
+	// layout of a state slot
+	static final int S_KEY_LO = 0;
+	static final int S_KEY_HI = 8;
+	static final int S_FLAGS = 16;
+	static final int S_BEST_ACTION = 20;
+	static final int S_REWARD = 24;
+	static final int S_REWARDS_FOR_FULL = 32;
+	static final int S_ACTION_REWARDS = 40;
+	static final int SLOT_BYTES = S_ACTION_REWARDS + 8 * TetrisModel.NUM_ACTIONS_ALLOWED;
+
+	static final int FLAG_OCCUPIED = 1;
+	static final int FLAG_TERMINAL = 2;
+
+	// slots per mapped chunk, a power of two so a chunk stays below 2 GB
+	static final int CHUNK_SHIFT = 31 - Integer.numberOfLeadingZeros(Integer.MAX_VALUE / SLOT_BYTES);
+
+	private Checkpoint() {
+	}
+
+	public static void saveWeights(File file, StateCodec codec, double[] weights) throws IOException {
+		if (weights.length != codec.numFeatures)
+			throw new IllegalArgumentException("Expected " + codec.numFeatures + " weights, got " + weights.length);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 8 * weights.length).order(ByteOrder.LITTLE_ENDIAN);
+		writeHeader(buffer, codec, KIND_WEIGHTS, weights.length, 0);
+		for (int i = 0; i < weights.length; i++) {
+			buffer.putDouble(HEADER_BYTES + 8 * i, weights[i]);
+		}
+		File temp = tempFile(file);
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			out.getChannel().write(buffer);
+		} finally {
+			out.close();
+		}
+		replace(temp, file);
+	}
+
+	/**
+	 * @return the weights stored in <code>file</code>, see {@link TetrisApproxQLearner#TetrisApproxQLearner(TetrisModel, int[], double[])}
+	 */
+	public static double[] loadWeights(File file, StateCodec codec) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			readHeader(buffer, file, codec, KIND_WEIGHTS);
+			int count = (int)buffer.getLong(H_COUNT);
+			if (buffer.capacity() < HEADER_BYTES + 8L * count)
+				throw new IOException("Truncated checkpoint: " + file);
+			double[] weights = new double[count];
+			for (int i = 0; i < count; i++) {
+				weights[i] = buffer.getDouble(HEADER_BYTES + 8 * i);
+			}
+			return weights;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes all states of <code>space</code> with their rewards and action
+	 * values. The table is sized for a load factor of at most one half.
+	 */
+	public static void saveStateSpace(File file, StateCodec codec, StateSpace space) throws IOException {
+		if (!space.accepts(codec))
+			throw new IllegalArgumentException("State space was created for a different board size");
+		List<State> states = new ArrayList<State>(space.size());
+		space.collect(states);
+		int capacity = Integer.highestOneBit(Math.max(16, states.size() * 2) - 1) << 1;
+		if (capacity <= 0 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Too many states to save: " + states.size());
+		File temp = tempFile(file);
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			out.setLength(HEADER_BYTES + (long)capacity * SLOT_BYTES);
+			FileChannel channel = out.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			writeHeader(header, codec, KIND_STATES, states.size(), capacity);
+			MappedByteBuffer[] chunks = mapChunks(channel, FileChannel.MapMode.READ_WRITE, capacity);
+			int mask = capacity - 1;
+			int chunkMask = (1 << CHUNK_SHIFT) - 1;
+			double[] actionRewards = new double[TetrisModel.NUM_ACTIONS_ALLOWED];
+			for (State state : states) {
+				long lo = state.keyLo & codec.relevantMaskLo;
+				long hi = state.keyHi & codec.relevantMaskHi;
+				int slot = (int)StateSpace.mix(lo, hi) & mask;
+				while (chunks[slot >>> CHUNK_SHIFT].getInt((slot & chunkMask) * SLOT_BYTES + S_FLAGS) != 0)
+					slot = (slot + 1) & mask;
+				ByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+				int offset = (slot & chunkMask) * SLOT_BYTES;
+				state.getActionRewards(actionRewards);
+				chunk.putLong(offset + S_KEY_LO, state.keyLo);
+				chunk.putLong(offset + S_KEY_HI, state.keyHi);
+				chunk.putInt(offset + S_FLAGS, FLAG_OCCUPIED | (state.isTerminal() ? FLAG_TERMINAL : 0));
+				chunk.putInt(offset + S_BEST_ACTION, state.getBestAction());
+				chunk.putDouble(offset + S_REWARD, state.getStateReward());
+				chunk.putDouble(offset + S_REWARDS_FOR_FULL, state.rewardsForFull);
+				for (int a = 0; a < actionRewards.length; a++) {
+					chunk.putDouble(offset + S_ACTION_REWARDS + 8 * a, actionRewards[a]);
+				}
+			}
+			header.force();
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		} finally {
+			out.close();
+		}
+		replace(temp, file);
+	}
+
+	/**
+	 * Maps a state space saved by {@link #saveStateSpace(File, StateCodec, StateSpace)}
+	 * read-only. States are probed in the mapped table; a state is only
+	 * turned into an object the first time it is looked up, and states added
+	 * or changed afterwards live on the heap. The file may be replaced by a
+	 * new checkpoint while mapped.
+	 */
+	public static StateSpace mapStateSpace(File file, StateCodec codec) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_BYTES, channel.size()));
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			readHeader(header, file, codec, KIND_STATES);
+			long size = header.getLong(H_COUNT);
+			long capacity = header.getLong(H_CAPACITY);
+			if (capacity <= 0 || capacity > 1 << 30 || Long.bitCount(capacity) != 1 || size > capacity / 2)
+				throw new IOException("Corrupt state table in " + file);
+			if (channel.size() < HEADER_BYTES + capacity * SLOT_BYTES)
+				throw new IOException("Truncated checkpoint: " + file);
+			MappedByteBuffer[] chunks = mapChunks(channel, FileChannel.MapMode.READ_ONLY, (int)capacity);
+			return new MappedStateSpace(codec, chunks, (int)capacity, (int)size);
+		} finally {
+			// the mappings stay valid after the channel is closed
+			in.close();
+		}
+	}
+
+	private static MappedByteBuffer[] mapChunks(FileChannel channel, FileChannel.MapMode mode, int capacity) throws IOException {
+		int perChunk = 1 << CHUNK_SHIFT;
+		MappedByteBuffer[] chunks = new MappedByteBuffer[(int)(((long)capacity + perChunk - 1) >>> CHUNK_SHIFT)];
+		for (int i = 0; i < chunks.length; i++) {
+			int slots = Math.min(perChunk, capacity - i * perChunk);
+			chunks[i] = channel.map(mode, HEADER_BYTES + (long)i * perChunk * SLOT_BYTES, (long)slots * SLOT_BYTES);
+			chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return chunks;
+	}
+
+	private static void writeHeader(ByteBuffer buffer, StateCodec codec, int kind, long count, long capacity) {
+		buffer.putInt(H_MAGIC, MAGIC);
+		buffer.putInt(H_VERSION, VERSION);
+		buffer.putInt(H_KIND, kind);
+		buffer.putInt(H_ROWS, codec.rows);
+		buffer.putInt(H_COLS, codec.cols);
+		buffer.putInt(H_FEATURES, codec.numFeatures);
+		buffer.putInt(H_FEATURE_LENGTH, codec.featureLength);
+		buffer.putInt(H_ACTIONS, TetrisModel.NUM_ACTIONS_ALLOWED);
+		buffer.putLong(H_MASK_LO, codec.relevantMaskLo);
+		buffer.putLong(H_MASK_HI, codec.relevantMaskHi);
+		buffer.putLong(H_COUNT, count);
+		buffer.putLong(H_CAPACITY, capacity);
+	}
+
+	private static void readHeader(ByteBuffer buffer, File file, StateCodec codec, int kind) throws IOException {
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(H_MAGIC) != MAGIC)
+			throw new IOException("Not a checkpoint: " + file);
+		if (buffer.getInt(H_VERSION) != VERSION)
+			throw new IOException("Unsupported checkpoint version " + buffer.getInt(H_VERSION) + " in " + file);
+		if (buffer.getInt(H_KIND) != kind)
+			throw new IOException("Expected a " + kindStr(kind) + " checkpoint, got " + kindStr(buffer.getInt(H_KIND)) + ": " + file);
+		int rows = buffer.getInt(H_ROWS), cols = buffer.getInt(H_COLS);
+		int numFeatures = buffer.getInt(H_FEATURES), featureLength = buffer.getInt(H_FEATURE_LENGTH);
+		if (rows != codec.rows || cols != codec.cols || numFeatures != codec.numFeatures || featureLength != codec.featureLength
+				|| buffer.getInt(H_ACTIONS) != TetrisModel.NUM_ACTIONS_ALLOWED
+				|| buffer.getLong(H_MASK_LO) != codec.relevantMaskLo || buffer.getLong(H_MASK_HI) != codec.relevantMaskHi)
+			throw new IllegalArgumentException("Checkpoint " + file + " was written for a " + rows + "x" + cols + " board with "
+					+ numFeatures + "/" + featureLength + " features, expected " + codec.rows + "x" + codec.cols + " with "
+					+ codec.numFeatures + "/" + codec.featureLength);
+	}
+
+	private static String kindStr(int kind) {
+		return kind == KIND_WEIGHTS ? "weights" : kind == KIND_STATES ? "state space" : "unknown (" + kind + ")";
+	}
+
+	private static File tempFile(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		return new File(dir, file.getName() + ".tmp");
+	}
+
+	/**
+	 * Moves a completely written checkpoint over <code>file</code>, so a
+	 * reader never sees a partial file and existing mappings stay intact
+	 */
+	private static void replace(File temp, File file) throws IOException {
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.smd.tetris;
+
+import java.util.List;
+
+/**
+ * State space that can be shared by several {@link TetrisModel}s running on
+ * different threads. The table is split into lock-striped segments picked by
+ * the high bits of the key hash; each segment is a plain {@link StateSpace}
+ * guarded by its own monitor, so threads only contend when they touch the
+ * same segment.
+ * <p>
+ * Two threads adding the same state race to insert it and both get the
+ * instance that won back. Action values of shared states should be changed
+ * through {@link State#updateActionReward(int, double, double)}.
+ */
+public class ConcurrentStateSpace extends StateSpace {
+
+	private static final int DEFAULT_SEGMENTS = 64;
+	private static final int SEGMENT_CAPACITY = 1 << 6;
+
+	private final StateSpace[] segments;
+	private final int segmentMask;
+
+	public ConcurrentStateSpace(StateCodec codec) {
+		this(codec, DEFAULT_SEGMENTS);
+	}
+	/**
+	 * @param concurrency number of segments, rounded up to a power of two
+	 */
+	public ConcurrentStateSpace(StateCodec codec, int concurrency) {
+		super(codec, 1);
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+		int n = Integer.highestOneBit(concurrency);
+		if (n < concurrency) n <<= 1;
+		this.segments = new StateSpace[n];
+		for (int i = 0; i < n; i++) {
+			segments[i] = new StateSpace(codec, SEGMENT_CAPACITY);
+		}
+		this.segmentMask = n - 1;
+	}
+
+	private StateSpace segmentFor(long keyLo, long keyHi) {
+		long h = mix(keyLo & maskLo, keyHi & maskHi);
+		return segments[(int)(h >>> 40) & segmentMask];
+	}
+
+	@Override
+	public State lookupState(State state, boolean addIfNotPresent) {
+		StateSpace segment = segmentFor(state.keyLo, state.keyHi);
+		synchronized (segment) {
+			return segment.lookupState(state, addIfNotPresent);
+		}
+	}
+
+	@Override
+	public State lookupState(State state) {
+		return lookupState(state, true);
+	}
+
+	@Override
+	public State lookupState(long keyLo, long keyHi) {
+		StateSpace segment = segmentFor(keyLo, keyHi);
+		synchronized (segment) {
+			return segment.lookupState(keyLo, keyHi);
+		}
+	}
+
+	/**
+	 * @return number of states; not a snapshot while other threads are adding
+	 */
+	@Override
+	public int size() {
+		int size = 0;
+		for (StateSpace segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	void collect(List<State> out) {
+		for (StateSpace segment : segments) {
+			synchronized (segment) {
+				segment.collect(out);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+package com.smd.tetris;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+import static com.smd.tetris.TetrisModel.*;
+
+/**
+ * Records every game played on a model into a compact binary log that
+ * {@link GameReplayer} plays back: the type, orientation and position of
+ * each new block, every action, every placement, row compressions and
+ * resets. Nothing random is recorded, the log holds the outcome, so a game
+ * replays the same whatever seeds or planner produced it.
+ * <p>
+ * A log is a 16 byte header (magic, version, flags, rows and columns, little
+ * endian) followed by one op per event, most of them a single byte: an
+ * action and the {@link TetrisModel#MOVE_DOWN} following it share a byte, a
+ * block spawning where the previous one did takes one byte, and other
+ * positions are zigzag varints relative to the previous spawn. The ops are
+ * buffered and written to a {@link FileChannel} in large blocks, optionally
+ * deflated.
+ * <p>
+ * The recorder must be added before the first game starts. Games moved with
+ * {@link TetrisModel#restore(ModelState)} or
+ * {@link TetrisModel#copyFrom(TetrisModel)} are not recorded.
+ */
+public class GameRecorder implements TetrisListener, Closeable {
+
+	static final int MAGIC = 0x4C524754; // "TGRL"
+	public static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+	static final int FLAG_DEFLATE = 1;
+
+	// ops; 0x00-0x07 is an action, with OP_MOVE_DOWN set it is followed by MOVE_DOWN
+	static final int OP_ACTION_MASK = 0x07;
+	static final int OP_MOVE_DOWN = 0x10;
+	static final int OP_PLACE = 0x08;
+	static final int OP_COMPRESS = 0x09;
+	static final int OP_RESET = 0x0A;
+	// type << 2 | orientation, followed by the row and column deltas unless OP_SAME_SPAWN is set
+	static final int OP_SPAWN = 0x40;
+	static final int OP_SAME_SPAWN = 0x80;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+	// longest op: tag, orientation and two varints of an int
+	private static final int MAX_OP_BYTES = 12;
+
+	private final TetrisModel tetris;
+	private final FileChannel channel;
+	private final byte[] bytes = new byte[BUFFER_BYTES];
+	private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+	private int length = 0;
+	private final Deflater deflater;
+	private final ByteBuffer deflated;
+
+	// position of the last action op in the buffer while it may still take a MOVE_DOWN
+	private int lastAction = -1;
+	private int spawnRow = 0;
+	private int spawnCol = 0;
+	// a placement is written once the block is in place
+	private boolean placing = false;
+	private long ops = 0;
+
+	public GameRecorder(TetrisModel model, File file) throws IOException {
+		this(model, file, 0);
+	}
+
+	/**
+	 * @param compression deflate level from 1 to 9, 0 to write the ops as they are
+	 */
+	public GameRecorder(TetrisModel model, File file, int compression) throws IOException {
+		if (compression < 0 || compression > 9)
+			throw new IllegalArgumentException("Compression level must be between 0 and 9: " + compression);
+		this.tetris = model;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.deflater = compression > 0 ? new Deflater(compression) : null;
+		this.deflated = compression > 0 ? ByteBuffer.allocate(BUFFER_BYTES) : null;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putShort((short)VERSION);
+		header.putShort((short)(deflater != null ? FLAG_DEFLATE : 0));
+		header.putInt(model.rows);
+		header.putInt(model.cols);
+		header.flip();
+		writeFully(header);
+		model.addListener(this, ROUND_STARTED | BEFORE_ACTION | AFTER_ACTION | COMPRESSED | RESET);
+	}
+
+	public void startRound() {
+		Block block = tetris.block;
+		int row = tetris.getRow();
+		int col = tetris.getCol();
+		int tag = OP_SPAWN | block.type << 2 | block.getOrientation();
+		reserve();
+		if (row == spawnRow && col == spawnCol) {
+			bytes[length++] = (byte)(tag | OP_SAME_SPAWN);
+		} else {
+			bytes[length++] = (byte)tag;
+			putVarint(row - spawnRow);
+			putVarint(col - spawnCol);
+			spawnRow = row;
+			spawnCol = col;
+		}
+		ops++;
+	}
+
+	public void beforeAction(int action) {
+		if (action == PLACE) {
+			placing = true;
+			return;
+		}
+		if (action == MOVE_DOWN && lastAction >= 0) {
+			bytes[lastAction] |= OP_MOVE_DOWN;
+			lastAction = -1;
+			return;
+		}
+		reserve();
+		lastAction = length;
+		bytes[length++] = (byte)action;
+		ops++;
+	}
+
+	public void afterAction(int action, boolean success) {
+		if (action == PLACE && placing) writePlacement();
+	}
+
+	private void writePlacement() {
+		placing = false;
+		reserve();
+		bytes[length++] = (byte)OP_PLACE;
+		bytes[length++] = (byte)tetris.block.getOrientation();
+		putVarint(tetris.getRow() - spawnRow);
+		putVarint(tetris.getCol() - spawnCol);
+		ops++;
+	}
+
+	public void compressed(int[] rows) {
+		// a listener may compress while the placement is still being announced
+		if (placing) writePlacement();
+		write(OP_COMPRESS);
+	}
+
+	public void reset() {
+		write(OP_RESET);
+	}
+
+	private void write(int op) {
+		reserve();
+		bytes[length++] = (byte)op;
+		ops++;
+	}
+
+	/**
+	 * Zigzag varint: small numbers of either sign take one byte
+	 */
+	private void putVarint(int value) {
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7F) != 0) {
+			bytes[length++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		bytes[length++] = (byte)v;
+	}
+
+	/**
+	 * Makes room for the next op, writing the buffer out when it is nearly
+	 * full. The op that follows is no longer merged with an earlier one.
+	 */
+	private void reserve() {
+		lastAction = -1;
+		if (length > BUFFER_BYTES - MAX_OP_BYTES) {
+			try {
+				writeBuffer();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write the game log", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes out everything recorded so far, so the log can be replayed up
+	 * to here even if it is never closed, e.g. after every game
+	 */
+	public void flush() throws IOException {
+		writeBuffer();
+		if (deflater != null) {
+			int n;
+			do {
+				n = deflater.deflate(deflated.array(), 0, deflated.capacity(), Deflater.SYNC_FLUSH);
+				deflated.clear().limit(n);
+				writeFully(deflated);
+			} while (n == deflated.capacity());
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if (deflater == null) {
+			buffer.clear().limit(length);
+			writeFully(buffer);
+		} else {
+			deflater.setInput(bytes, 0, length);
+			while (!deflater.needsInput()) {
+				drainDeflater();
+			}
+		}
+		length = 0;
+	}
+
+	private void drainDeflater() throws IOException {
+		int n = deflater.deflate(deflated.array(), 0, deflated.capacity());
+		deflated.clear().limit(n);
+		writeFully(deflated);
+	}
+
+	private void writeFully(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/**
+	 * @return number of ops recorded, an action with its MOVE_DOWN counting once
+	 */
+	public long getOps() {
+		return ops;
+	}
+
+	/**
+	 * Stops recording and writes out what is left
+	 */
+	public void close() throws IOException {
+		tetris.removeListener(this);
+		try {
+			writeBuffer();
+			if (deflater != null) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					drainDeflater();
+				}
+			}
+		} finally {
+			if (deflater != null) deflater.end();
+			channel.close();
+		}
+	}
+
+	public void setBlock(Block block, int row, int col) {
+		// do nothing
+	}
+
+	public void clearBlock(Block block, int row, int col) {
+		// do nothing
+	}
+
+	public void blockAtBottom(Block block) {
+		// do nothing
+	}
+
+	public void boardFull() {
+		// do nothing
+	}
+
+}
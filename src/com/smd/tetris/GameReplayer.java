@@ -0,0 +1,228 @@
+package com.smd.tetris;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static com.smd.tetris.GameRecorder.*;
+
+/**
+ * Plays a log written by {@link GameRecorder} back on a model of the same
+ * size, as fast as possible or with a pause after every move so a
+ * {@link TetrisView} on the model can follow. Listeners of the model see
+ * the games as they were played; no planner is needed.
+ */
+public class GameReplayer implements Closeable {
+
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private final FileChannel channel;
+	private final InputStream in;
+	private final Inflater inflater;
+	private final byte[] bytes = new byte[BUFFER_BYTES];
+	private int position = 0;
+	private int limit = 0;
+
+	private final int rows;
+	private final int cols;
+	private final Placement placement = new Placement();
+
+	private long games = 0;
+	private long blocks = 0;
+	private long moves = 0;
+	private long rowsCompressed = 0;
+
+	public GameReplayer(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0)
+					throw new IOException("Not a game log, too short: " + file);
+			}
+			header.flip();
+			if (header.getInt() != MAGIC)
+				throw new IOException("Not a game log: " + file);
+			int version = header.getShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported game log version " + version + ": " + file);
+			int flags = header.getShort();
+			this.rows = header.getInt();
+			this.cols = header.getInt();
+			InputStream raw = Channels.newInputStream(channel);
+			if ((flags & FLAG_DEFLATE) != 0) {
+				this.inflater = new Inflater();
+				this.in = new InflaterInputStream(raw, inflater, BUFFER_BYTES);
+			} else {
+				this.inflater = null;
+				this.in = new BufferedInputStream(raw, BUFFER_BYTES);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return rows of the model the log was recorded on
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Plays the rest of the log at full speed
+	 */
+	public void replay(TetrisModel model) throws IOException {
+		replay(model, 0);
+	}
+
+	/**
+	 * Plays the rest of the log, sleeping <code>delayMillis</code> after
+	 * every new block, action and placement. Returns early when the thread
+	 * is interrupted, with the interrupt flag set.
+	 */
+	public void replay(TetrisModel model, long delayMillis) throws IOException {
+		if (model.rows != rows || model.cols != cols)
+			throw new IllegalArgumentException("Log was recorded on a " + rows + "x" + cols + " board, not "
+					+ model.rows + "x" + model.cols);
+		int spawnRow = 0;
+		int spawnCol = 0;
+		int op;
+		while ((op = next()) >= 0) {
+			if ((op & OP_SPAWN) != 0) {
+				if ((op & OP_SAME_SPAWN) == 0) {
+					spawnRow += readVarint();
+					spawnCol += readVarint();
+				}
+				Block block = new Block((op >> 2) & 7);
+				block.setOrientation(op & 3);
+				model.newBlock(block, spawnRow, spawnCol);
+				blocks++;
+			} else if (op == OP_PLACE) {
+				placement.orientation = readByte();
+				placement.row = spawnRow + readVarint();
+				placement.col = spawnCol + readVarint();
+				placement.shape = Block.shape(model.block.type, placement.orientation);
+				model.place(placement);
+				moves++;
+			} else if (op == OP_COMPRESS) {
+				rowsCompressed += model.compressRowsCompleted();
+				continue;
+			} else if (op == OP_RESET) {
+				model.reset();
+				games++;
+				continue;
+			} else if ((op & ~(OP_ACTION_MASK | OP_MOVE_DOWN)) == 0) {
+				model.takeAction(op & OP_ACTION_MASK);
+				moves++;
+				if ((op & OP_MOVE_DOWN) != 0) {
+					if (!pause(delayMillis)) return;
+					model.takeAction(TetrisModel.MOVE_DOWN);
+				}
+			} else {
+				throw new IOException("Corrupt game log, unknown op 0x" + Integer.toHexString(op));
+			}
+			if (!pause(delayMillis)) return;
+		}
+	}
+
+	/**
+	 * @return false when interrupted
+	 */
+	private static boolean pause(long delayMillis) {
+		if (delayMillis <= 0) return true;
+		try {
+			Thread.sleep(delayMillis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return next byte of the log, or -1 at its end
+	 */
+	private int next() throws IOException {
+		if (position == limit) {
+			try {
+				limit = in.read(bytes, 0, bytes.length);
+			} catch (EOFException e) {
+				// a deflated log that was flushed but never closed
+				if (inflater == null) throw e;
+				limit = -1;
+			}
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return bytes[position++] & 0xFF;
+	}
+
+	private int readByte() throws IOException {
+		int b = next();
+		if (b < 0) throw new EOFException("Game log ends inside an op");
+		return b;
+	}
+
+	private int readVarint() throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return (v >>> 1) ^ -(v & 1);
+		}
+		throw new IOException("Corrupt game log, varint too long");
+	}
+
+	/**
+	 * @return games started, counted by their resets
+	 */
+	public long getGames() {
+		return games;
+	}
+
+	public long getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return actions and placements replayed, an action and the MOVE_DOWN
+	 * following it counting once, as in the moves of {@link TetrisRunner}
+	 */
+	public long getMoves() {
+		return moves;
+	}
+
+	public long getRowsCompressed() {
+		return rowsCompressed;
+	}
+
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			if (inflater != null) inflater.end();
+			channel.close();
+		}
+	}
+
+}
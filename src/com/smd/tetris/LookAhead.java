@@ -0,0 +1,35 @@
+package com.smd.tetris;
+
+import java.util.Formatter;
+
+/**
+ * Reusable holder for a state evaluated by {@link TetrisModel#lookAhead(int, LookAhead)}
+ * or {@link TetrisModel#getState(LookAhead)}. It carries the same information
+ * as a {@link State} but is filled in place, so evaluating states allocates
+ * nothing.
+ */
+public class LookAhead {
+	
+	/** Expanded feature vector, as returned by {@link TetrisModel#getFeatures()} */
+	public final double[] features;
+	
+	public boolean terminalState;
+	public double stateReward;
+	
+	/** Whether the block can move no further down */
+	public boolean resting;
+	public double rewardsForFull;
+	/** Number of completed rows and their rewards; zero unless resting */
+	public final double[] completedRows = new double[2];
+	
+	public LookAhead(TetrisModel model) {
+		this.features = new double[model.getFeatureLength()];
+	}
+	
+	public String toString() {
+		Formatter formatter = new Formatter(new StringBuilder());
+		formatter.format("%2.1f", stateReward);
+		return "R:" + formatter.toString() + ",T:" + terminalState + ",F:" + State.vec2Str(features, 3, 0);
+	}
+	
+}
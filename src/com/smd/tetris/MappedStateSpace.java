@@ -0,0 +1,110 @@
+package com.smd.tetris;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.smd.tetris.Checkpoint.*;
+
+/**
+ * State space backed by a read-only mapped checkpoint, see
+ * {@link Checkpoint#mapStateSpace(java.io.File, StateCodec)}. The mapped
+ * table is probed like {@link StateSpace} probes its own. A mapped state
+ * becomes an object on its first lookup and is then kept on the heap with
+ * the states added since, so later updates to it are seen by every lookup.
+ */
+class MappedStateSpace extends StateSpace {
+
+	private final StateCodec codec;
+	private final ByteBuffer[] chunks;
+	private final int mask;
+	private final int chunkMask = (1 << CHUNK_SHIFT) - 1;
+	private final int mappedSize;
+	// states on the heap that are not in the mapped table
+	private int added = 0;
+
+	MappedStateSpace(StateCodec codec, ByteBuffer[] chunks, int capacity, int mappedSize) {
+		super(codec);
+		this.codec = codec;
+		this.chunks = chunks;
+		this.mask = capacity - 1;
+		this.mappedSize = mappedSize;
+	}
+
+	@Override
+	public State lookupState(State state, boolean addIfNotPresent) {
+		State found = lookupState(state.keyLo, state.keyHi);
+		if (found != null || !addIfNotPresent)
+			return found;
+		added++;
+		return super.lookupState(state, true);
+	}
+
+	@Override
+	public State lookupState(long keyLo, long keyHi) {
+		State found = super.lookupState(keyLo, keyHi);
+		if (found != null)
+			return found;
+		int slot = probe(keyLo & maskLo, keyHi & maskHi);
+		if (slot < 0)
+			return null;
+		return super.lookupState(load(slot), true);
+	}
+
+	@Override
+	public int size() {
+		return mappedSize + added;
+	}
+
+	/**
+	 * Adds the mapped states, as changed on the heap if they were looked up,
+	 * then the states added since mapping
+	 */
+	@Override
+	void collect(List<State> out) {
+		for (int slot = 0; slot <= mask; slot++) {
+			ByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+			int offset = (slot & chunkMask) * SLOT_BYTES;
+			if (chunk.getInt(offset + S_FLAGS) == 0) continue;
+			State state = super.lookupState(chunk.getLong(offset + S_KEY_LO), chunk.getLong(offset + S_KEY_HI));
+			out.add(state != null ? state : load(slot));
+		}
+		List<State> heap = new ArrayList<State>();
+		super.collect(heap);
+		for (State state : heap) {
+			if (probe(state.keyLo & maskLo, state.keyHi & maskHi) < 0)
+				out.add(state);
+		}
+	}
+
+	/**
+	 * @return slot of the key in the mapped table, -1 if absent
+	 */
+	private int probe(long lo, long hi) {
+		int slot = (int)mix(lo, hi) & mask;
+		while (true) {
+			ByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+			int offset = (slot & chunkMask) * SLOT_BYTES;
+			if (chunk.getInt(offset + S_FLAGS) == 0)
+				return -1;
+			if ((chunk.getLong(offset + S_KEY_LO) & maskLo) == lo && (chunk.getLong(offset + S_KEY_HI) & maskHi) == hi)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private State load(int slot) {
+		ByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+		int offset = (slot & chunkMask) * SLOT_BYTES;
+		double[] actionRewards = new double[TetrisModel.NUM_ACTIONS_ALLOWED];
+		for (int a = 0; a < actionRewards.length; a++) {
+			actionRewards[a] = chunk.getDouble(offset + S_ACTION_REWARDS + 8 * a);
+		}
+		int flags = chunk.getInt(offset + S_FLAGS);
+		State state = new State(codec, chunk.getLong(offset + S_KEY_LO), chunk.getLong(offset + S_KEY_HI),
+				(flags & FLAG_TERMINAL) != 0, chunk.getDouble(offset + S_REWARD), chunk.getInt(offset + S_BEST_ACTION), actionRewards);
+		state.rewardsForFull = chunk.getDouble(offset + S_REWARDS_FOR_FULL);
+		return state;
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.smd.tetris;
+
+import java.util.Arrays;
+
+/**
+ * Counters and latency histograms of a training run. A model records into
+ * the instance set with {@link TetrisModel#setMetrics(Metrics)}; without one
+ * every measuring point is a single null check. Not thread safe, each model
+ * needs its own.
+ * <p>
+ * Latencies go into 64 power of two buckets, so percentiles are accurate to
+ * a factor of two while recording stays a handful of instructions. Timers
+ * cover the time since the last {@link #resetTimers()}, counters the whole
+ * run.
+ */
+public final class Metrics {
+
+	public static final int GET_STATE = 0;
+	public static final int LOOK_AHEAD = 1;
+	public static final int WEIGHT_UPDATE = 2;
+	public static final int EPOCH = 3;
+	static final int NUM_TIMERS = 4;
+	static final String[] TIMER_NAMES = { "get_state", "look_ahead", "weight_update", "epoch" };
+
+	public static final int ACTIONS = 0;
+	public static final int STATE_HITS = 1;
+	public static final int STATE_MISSES = 2;
+	public static final int EPOCHS = 3;
+	public static final int BLOCKS = 4;
+	public static final int ROWS = 5;
+	static final int NUM_COUNTERS = 6;
+	static final String[] COUNTER_NAMES = { "actions", "state_hits", "state_misses", "epochs", "blocks", "rows" };
+
+	private static final int BUCKETS = 64;
+
+	private final long[] counters = new long[NUM_COUNTERS];
+	private final long[][] buckets = new long[NUM_TIMERS][BUCKETS];
+	private final long[] timed = new long[NUM_TIMERS];
+	private final long[] totalNanos = new long[NUM_TIMERS];
+	private final long[] maxNanos = new long[NUM_TIMERS];
+
+	public void count(int counter) {
+		counters[counter]++;
+	}
+
+	public void add(int counter, long n) {
+		counters[counter] += n;
+	}
+
+	public long counter(int counter) {
+		return counters[counter];
+	}
+
+	/**
+	 * Records one measurement of <code>timer</code> taking <code>nanos</code>
+	 */
+	public void time(int timer, long nanos) {
+		if (nanos < 0) nanos = 0;
+		buckets[timer][BUCKETS - Long.numberOfLeadingZeros(nanos)]++;
+		timed[timer]++;
+		totalNanos[timer] += nanos;
+		if (nanos > maxNanos[timer]) maxNanos[timer] = nanos;
+	}
+
+	/**
+	 * @return number of measurements of <code>timer</code> since the last reset
+	 */
+	public long timed(int timer) {
+		return timed[timer];
+	}
+
+	public double meanNanos(int timer) {
+		return timed[timer] == 0 ? 0 : (double)totalNanos[timer] / timed[timer];
+	}
+
+	public long maxNanos(int timer) {
+		return maxNanos[timer];
+	}
+
+	/**
+	 * @return upper bound of the bucket holding the <code>p</code> quantile
+	 * of <code>timer</code>, at most the largest measurement
+	 */
+	public long percentileNanos(int timer, double p) {
+		long n = timed[timer];
+		if (n == 0) return 0;
+		long rank = (long)Math.ceil(p * n);
+		if (rank < 1) rank = 1;
+		long[] b = buckets[timer];
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += b[i];
+			if (seen >= rank)
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, maxNanos[timer]);
+		}
+		return maxNanos[timer];
+	}
+
+	public void resetTimers() {
+		for (int t = 0; t < NUM_TIMERS; t++) {
+			Arrays.fill(buckets[t], 0);
+			timed[t] = 0;
+			totalNanos[t] = 0;
+			maxNanos[t] = 0;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.smd.tetris;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Appends periodic snapshots of a {@link Metrics} to a local file, one line
+ * per snapshot, as CSV when the file name ends in <code>.csv</code> and as
+ * JSON lines otherwise. Each line is flushed, so the file can be followed
+ * while training runs.
+ * <p>
+ * A line holds the run totals of every counter, the rates of the interval
+ * since the previous line (actions and epochs per second, state space hit
+ * rate, blocks and rows per epoch) and count, mean, median, 99th percentile
+ * and maximum of every timer in that interval. Writing a line resets the
+ * timers.
+ */
+public class MetricsLog implements Closeable {
+
+	private final BufferedWriter out;
+	private final boolean csv;
+	private final long start;
+
+	private final long[] last = new long[Metrics.NUM_COUNTERS];
+	private long lastTime;
+	private final StringBuilder line = new StringBuilder(512);
+	private int column;
+
+	public MetricsLog(File file) throws IOException {
+		this.out = new BufferedWriter(new FileWriter(file));
+		this.csv = file.getName().toLowerCase(Locale.ROOT).endsWith(".csv");
+		this.start = System.nanoTime();
+		this.lastTime = start;
+		if (csv) writeHeader();
+	}
+
+	private void writeHeader() throws IOException {
+		line.setLength(0);
+		line.append("time_s,epoch,states");
+		for (String name : Metrics.COUNTER_NAMES) {
+			line.append(',').append(name);
+		}
+		line.append(",actions_per_s,epochs_per_s,state_hit_rate,blocks_per_epoch,rows_per_epoch");
+		for (String name : Metrics.TIMER_NAMES) {
+			line.append(',').append(name).append("_count");
+			line.append(',').append(name).append("_mean_ns");
+			line.append(',').append(name).append("_p50_ns");
+			line.append(',').append(name).append("_p99_ns");
+			line.append(',').append(name).append("_max_ns");
+		}
+		out.write(line.toString());
+		out.newLine();
+		out.flush();
+	}
+
+	/**
+	 * Writes one snapshot taken after <code>epoch</code> epochs, with
+	 * <code>states</code> states in the state space
+	 */
+	public void write(Metrics metrics, long epoch, int states) throws IOException {
+		long now = System.nanoTime();
+		double secs = Math.max(now - lastTime, 1) / 1e9;
+		long actions = metrics.counter(Metrics.ACTIONS) - last[Metrics.ACTIONS];
+		long epochs = metrics.counter(Metrics.EPOCHS) - last[Metrics.EPOCHS];
+		long hits = metrics.counter(Metrics.STATE_HITS) - last[Metrics.STATE_HITS];
+		long lookups = hits + metrics.counter(Metrics.STATE_MISSES) - last[Metrics.STATE_MISSES];
+
+		line.setLength(0);
+		column = 0;
+		if (!csv) line.append('{');
+		field("time_s", (now - start) / 1e9);
+		field("epoch", epoch);
+		field("states", states);
+		for (int c = 0; c < Metrics.NUM_COUNTERS; c++) {
+			field(Metrics.COUNTER_NAMES[c], metrics.counter(c));
+		}
+		field("actions_per_s", actions / secs);
+		field("epochs_per_s", epochs / secs);
+		field("state_hit_rate", lookups == 0 ? 0 : (double)hits / lookups);
+		field("blocks_per_epoch", epochs == 0 ? 0 : (double)(metrics.counter(Metrics.BLOCKS) - last[Metrics.BLOCKS]) / epochs);
+		field("rows_per_epoch", epochs == 0 ? 0 : (double)(metrics.counter(Metrics.ROWS) - last[Metrics.ROWS]) / epochs);
+		for (int t = 0; t < Metrics.NUM_TIMERS; t++) {
+			String name = Metrics.TIMER_NAMES[t];
+			field(name + "_count", metrics.timed(t));
+			field(name + "_mean_ns", metrics.meanNanos(t));
+			field(name + "_p50_ns", metrics.percentileNanos(t, 0.5));
+			field(name + "_p99_ns", metrics.percentileNanos(t, 0.99));
+			field(name + "_max_ns", metrics.maxNanos(t));
+		}
+		if (!csv) line.append('}');
+		out.write(line.toString());
+		out.newLine();
+		out.flush();
+
+		for (int c = 0; c < Metrics.NUM_COUNTERS; c++) {
+			last[c] = metrics.counter(c);
+		}
+		lastTime = now;
+		metrics.resetTimers();
+	}
+
+	private void field(String name, long value) {
+		separate(name);
+		line.append(value);
+	}
+
+	private void field(String name, double value) {
+		separate(name);
+		line.append(String.format(Locale.ROOT, "%.3f", value));
+	}
+
+	private void separate(String name) {
+		if (column++ > 0) line.append(',');
+		if (!csv) line.append('"').append(name).append("\":");
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.smd.tetris;
+
+/**
+ * Buffers holding the game state of a {@link TetrisModel}: board, current
+ * block and its position, flags, the piece and move streams and the
+ * position in a {@link PieceSequence}. Created once by
+ * {@link TetrisModel#newState()} and then filled by
+ * {@link TetrisModel#save(ModelState)} as often as needed, e.g. one per
+ * search depth, so saving and restoring allocate nothing.
+ */
+public final class ModelState {
+
+	final TetrisBoard board;
+	final byte[] cellTypes;
+	final SplitMix pieceRandom = new SplitMix(0);
+	final SplitMix random = new SplitMix(0);
+
+	Block block;
+	int orientation;
+	int row;
+	int col;
+	boolean atBottom;
+	boolean full;
+	boolean blockSettled;
+	int preview;
+	PieceSequence pieces;
+	int piecePosition;
+	// model that saved the state last, null until then
+	TetrisModel source = null;
+
+	ModelState(int engine, int rows, int cols) {
+		this.board = TetrisBoard.create(engine, rows, cols);
+		this.cellTypes = new byte[rows * cols];
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.smd.tetris;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Sequence of block types handed out by {@link TetrisModel#randomBlock()}.
+ * A sequence built from a seed draws new types as they are needed and
+ * records them; one built from an array replays exactly those types.
+ * {@link #rewind()} starts over from the first recorded type, so the same
+ * game can be played again.
+ */
+public class PieceSequence {
+
+	private final SplittableRandom random;
+	private int[] pieces;
+	private int length;
+	private int position = 0;
+
+	/**
+	 * Records a sequence drawn from <code>seed</code>
+	 */
+	public PieceSequence(long seed) {
+		this.random = new SplittableRandom(seed);
+		this.pieces = new int[64];
+		this.length = 0;
+	}
+
+	/**
+	 * Replays <code>pieces</code>; asking for more than were given throws
+	 * an {@link IllegalStateException}
+	 */
+	public PieceSequence(int[] pieces) {
+		for (int type : pieces) {
+			if (type < 0 || type >= Block.BLOCK_TEMPLATES.length)
+				throw new IllegalArgumentException("Invalid block type: " + type);
+		}
+		this.random = null;
+		this.pieces = pieces.clone();
+		this.length = pieces.length;
+	}
+
+	/**
+	 * @return next block type
+	 */
+	public int next() {
+		int type = peek(0);
+		position++;
+		return type;
+	}
+
+	/**
+	 * @return the block type <code>ahead</code> positions after the next one,
+	 * without consuming anything
+	 */
+	public int peek(int ahead) {
+		int index = position + ahead;
+		while (index >= length) {
+			if (random == null)
+				throw new IllegalStateException("Recorded piece sequence exhausted after " + length + " pieces");
+			if (length == pieces.length)
+				pieces = Arrays.copyOf(pieces, length * 2);
+			pieces[length++] = random.nextInt(Block.BLOCK_TEMPLATES.length);
+		}
+		return pieces[index];
+	}
+
+	/**
+	 * Replays the sequence from its first piece
+	 */
+	public void rewind() {
+		position = 0;
+	}
+
+	/**
+	 * @return number of pieces handed out since the last rewind
+	 */
+	public int position() {
+		return position;
+	}
+
+	/**
+	 * Goes back or forward to <code>position</code>, at most as far as the
+	 * pieces recorded so far
+	 */
+	void seek(int position) {
+		if (position < 0 || position > length)
+			throw new IllegalArgumentException("Position outside the recorded pieces: " + position);
+		this.position = position;
+	}
+
+	/**
+	 * @return copy of all pieces recorded so far
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(pieces, length);
+	}
+
+}
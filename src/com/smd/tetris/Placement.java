@@ -0,0 +1,23 @@
+package com.smd.tetris;
+
+/**
+ * A final resting place of the current block, as enumerated by
+ * {@link TetrisModel#getPlacements(Placement[])}: the block is turned by
+ * <code>rotation</code> and shifted at its current row, then dropped to
+ * (<code>row</code>, <code>col</code>).
+ */
+public class Placement {
+	
+	/** 0 - none, 1 - clockwise, -1 - counter clockwise, 2 - half turn */
+	public int rotation;
+	public int orientation;
+	public int row;
+	public int col;
+	
+	BlockShape shape;
+	
+	public String toString() {
+		return "Placement [rot=" + rotation + ", orientation=" + orientation + ", row=" + row + ", col=" + col + "]";
+	}
+	
+}
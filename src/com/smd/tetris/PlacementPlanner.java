@@ -0,0 +1,17 @@
+package com.smd.tetris;
+
+/**
+ * Planner that chooses where the current block comes to rest instead of
+ * proposing one move per time step.
+ */
+public interface PlacementPlanner extends Planner {
+	
+	/**
+	 * @param placements reachable placements of the current block, see
+	 * {@link TetrisModel#getPlacements(Placement[])}
+	 * @param count number of valid entries, at least one
+	 * @return index of the chosen placement
+	 */
+	int proposePlacement(Placement[] placements, int count);
+	
+}
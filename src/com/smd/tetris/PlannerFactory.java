@@ -0,0 +1,15 @@
+package com.smd.tetris;
+
+/**
+ * Creates a planner playing on a given model, for harnesses such as
+ * {@link TetrisEvaluation} that run one model per thread.
+ */
+public interface PlannerFactory {
+
+	/**
+	 * @return a planner listening to <code>model</code>, which plays one
+	 * game after another on it
+	 */
+	Planner create(TetrisModel model);
+
+}
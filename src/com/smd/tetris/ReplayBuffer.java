@@ -0,0 +1,149 @@
+package com.smd.tetris;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed capacity ring of transitions for experience replay, kept in direct
+ * byte buffers outside the Java heap. Each transition is one record of
+ * primitives: reward, action, terminal flag, then the features and the next
+ * features as floats. Once full, the oldest transition is overwritten.
+ * <p>
+ * A record takes <code>16 + 8 * numFeatures</code> bytes, e.g. 456 bytes on
+ * a 10 column board, so a million transitions need about 450 MB of direct
+ * memory (see -XX:MaxDirectMemorySize). Records are spread over several
+ * buffers when they do not fit into one.
+ */
+public class ReplayBuffer {
+
+	private static final int REWARD = 0;
+	private static final int ACTION = 8;
+	private static final int TERMINAL = 12;
+	private static final int FEATURES = 16;
+
+	private final int capacity;
+	private final int numFeatures;
+	private final int recordBytes;
+	private final int recordsPerChunk;
+	private final ByteBuffer[] chunks;
+
+	private int next = 0;
+	private int size = 0;
+	private long added = 0;
+
+	/**
+	 * @param numFeatures number of features stored per state, the length of
+	 * the learner's weight vector
+	 */
+	public ReplayBuffer(int capacity, int numFeatures) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		if (numFeatures <= 0)
+			throw new IllegalArgumentException("Number of features must be positive: " + numFeatures);
+		this.capacity = capacity;
+		this.numFeatures = numFeatures;
+		this.recordBytes = FEATURES + 8 * numFeatures;
+		this.recordsPerChunk = Math.min(capacity, Integer.MAX_VALUE / recordBytes);
+		this.chunks = new ByteBuffer[(capacity + recordsPerChunk - 1) / recordsPerChunk];
+		for (int i = 0; i < chunks.length; i++) {
+			int records = Math.min(recordsPerChunk, capacity - i * recordsPerChunk);
+			chunks[i] = ByteBuffer.allocateDirect(records * recordBytes).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Stores a transition, overwriting the oldest one when full. Only the
+	 * first {@link #numFeatures()} entries of the feature arrays are kept;
+	 * <code>nextFeatures</code> is ignored for terminal transitions.
+	 */
+	public void add(double[] features, int action, double reward, double[] nextFeatures, boolean terminal) {
+		ByteBuffer chunk = chunks[next / recordsPerChunk];
+		int offset = (next % recordsPerChunk) * recordBytes;
+		chunk.putDouble(offset + REWARD, reward);
+		chunk.putInt(offset + ACTION, action);
+		chunk.putInt(offset + TERMINAL, terminal ? 1 : 0);
+		int f = offset + FEATURES;
+		for (int i = 0; i < numFeatures; i++, f += 4) {
+			chunk.putFloat(f, (float)features[i]);
+		}
+		if (!terminal) {
+			for (int i = 0; i < numFeatures; i++, f += 4) {
+				chunk.putFloat(f, (float)nextFeatures[i]);
+			}
+		}
+		next = next + 1 == capacity ? 0 : next + 1;
+		if (size < capacity) size++;
+		added++;
+	}
+
+	/**
+	 * Copies the features of transition <code>index</code>, counted from the
+	 * oldest one still held, into <code>features</code> and, unless it is
+	 * terminal, its next features into <code>nextFeatures</code>.
+	 *
+	 * @return whether the transition is terminal
+	 */
+	public boolean read(int index, double[] features, double[] nextFeatures) {
+		ByteBuffer chunk = chunk(index);
+		int offset = offset(index);
+		boolean terminal = chunk.getInt(offset + TERMINAL) != 0;
+		int f = offset + FEATURES;
+		for (int i = 0; i < numFeatures; i++, f += 4) {
+			features[i] = chunk.getFloat(f);
+		}
+		if (!terminal) {
+			for (int i = 0; i < numFeatures; i++, f += 4) {
+				nextFeatures[i] = chunk.getFloat(f);
+			}
+		}
+		return terminal;
+	}
+
+	public double reward(int index) {
+		return chunk(index).getDouble(offset(index) + REWARD);
+	}
+
+	public int action(int index) {
+		return chunk(index).getInt(offset(index) + ACTION);
+	}
+
+	private ByteBuffer chunk(int index) {
+		return chunks[slot(index) / recordsPerChunk];
+	}
+
+	private int offset(int index) {
+		return (slot(index) % recordsPerChunk) * recordBytes;
+	}
+
+	private int slot(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Transition " + index + " of " + size);
+		int slot = next - size + index;
+		return slot < 0 ? slot + capacity : slot;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int numFeatures() {
+		return numFeatures;
+	}
+
+	/**
+	 * @return number of transitions added so far, including overwritten ones
+	 */
+	public long added() {
+		return added;
+	}
+
+	public void clear() {
+		next = 0;
+		size = 0;
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.smd.tetris;
+
+/**
+ * The SplitMix64 generator of {@link java.util.SplittableRandom}, drawing
+ * exactly the same numbers for the same seed, with a state that can be
+ * copied and overwritten in place. Models use it so their random streams can
+ * be saved and restored without allocating.
+ */
+final class SplitMix {
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private long seed;
+	private long gamma;
+
+	SplitMix(long seed) {
+		setSeed(seed);
+	}
+
+	void setSeed(long seed) {
+		this.seed = seed;
+		this.gamma = GOLDEN_GAMMA;
+	}
+
+	/**
+	 * Makes this generator the one <code>parent.split()</code> would return,
+	 * advancing the parent the same way
+	 */
+	void splitFrom(SplitMix parent) {
+		long s = parent.nextLong();
+		this.gamma = mixGamma(parent.nextSeed());
+		this.seed = s;
+	}
+
+	void copyFrom(SplitMix other) {
+		this.seed = other.seed;
+		this.gamma = other.gamma;
+	}
+
+	private long nextSeed() {
+		return seed += gamma;
+	}
+
+	long nextLong() {
+		return mix64(nextSeed());
+	}
+
+	int nextInt() {
+		return mix32(nextSeed());
+	}
+
+	/**
+	 * @return uniform int in [0, bound)
+	 */
+	int nextInt(int bound) {
+		if (bound <= 0)
+			throw new IllegalArgumentException("bound must be positive");
+		int r = nextInt();
+		int m = bound - 1;
+		if ((bound & m) == 0) {
+			r &= m;
+		} else {
+			for (int u = r >>> 1; u + m - (r = u % bound) < 0; u = nextInt() >>> 1)
+				;
+		}
+		return r;
+	}
+
+	/**
+	 * @return uniform double in [0, 1)
+	 */
+	double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static int mix32(long z) {
+		z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+		return (int)(((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+	}
+
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+
+}
@@ -2,13 +2,22 @@ package com.smd.tetris;
 
 import java.util.Formatter;
 
+/**
+ * A state is stored as the packed key produced by {@link StateCodec}; the
+ * feature vector is only expanded when asked for.
+ * <p>
+ * Action values are guarded by the state's monitor so that learners on
+ * different threads can share states through a {@link ConcurrentStateSpace}.
+ */
 public class State implements Comparable<State> {
 	
-	public final double[] features;
+	private final StateCodec codec;
+	public final long keyLo;
+	public final long keyHi;
 	public final int relevantFeatures;
 	
-	public boolean terminalState;
-	public double stateReward;
+	private boolean terminalState;
+	private double stateReward;
 	private final double[] actionRewards;
 	
 	private int bestAction = 0;
@@ -16,14 +25,16 @@ public class State implements Comparable<State> {
 	public double rewardsForFull = 0;
 	public double[] completedRows = null;
 	
-	public State(double[] features) {
-		this(features, false, 0, features.length, TetrisModel.DO_NOTHING, new double[TetrisModel.NUM_ACTIONS_ALLOWED]);
+	public State(StateCodec codec, long keyLo, long keyHi) {
+		this(codec, keyLo, keyHi, false, 0, TetrisModel.DO_NOTHING, new double[TetrisModel.NUM_ACTIONS_ALLOWED]);
 	}
-	public State(double[] features, boolean terminalState, double stateReward, int relevantFeatures, int policy, double[] actionRewards) {
-		this.features = features;
+	public State(StateCodec codec, long keyLo, long keyHi, boolean terminalState, double stateReward, int policy, double[] actionRewards) {
+		this.codec = codec;
+		this.keyLo = keyLo;
+		this.keyHi = keyHi;
 		this.terminalState = terminalState;
 		this.stateReward = stateReward;
-		this.relevantFeatures = relevantFeatures;
+		this.relevantFeatures = codec.numFeatures;
 		this.actionRewards = actionRewards;
 		this.bestAction = policy;
 	}
@@ -31,9 +42,11 @@ public class State implements Comparable<State> {
 	public int compareTo(State s) {
 		int ret = 0;
 		for (int i = 0; i < relevantFeatures; i++) {
-			if (this.features[i] < s.features[i])
+			double f = this.getFeature(i);
+			double sf = s.getFeature(i);
+			if (f < sf)
 				return -1;
-			else if (this.features[i] > s.features[i])
+			else if (f > sf)
 				return 1;
 		}
 		return ret;
@@ -41,17 +54,44 @@ public class State implements Comparable<State> {
 	
 	public String toString() {
 		Formatter formatter = new Formatter(new StringBuilder());
-		formatter.format("%2.1f", stateReward);
-		String stateStr = "R:" + formatter.toString() + ",T:" + terminalState + ",Pi:" + bestAction + ",AR:" + rewardStr() + ",F:" + featureStr();
+		formatter.format("%2.1f", getStateReward());
+		String stateStr = "R:" + formatter.toString() + ",T:" + isTerminal() + ",Pi:" + getBestAction() + ",AR:" + rewardStr() + ",F:" + featureStr();
 		return stateStr;
 	}
 	
-	public String rewardStr() {
+	public synchronized String rewardStr() {
 		return vec2Str(actionRewards, 3, 6);
 	}
 	
 	public String featureStr() {
-		return vec2Str(features, 3, 0);
+		return vec2Str(getFeatures(), 3, 0);
+	}
+	
+	/**
+	 * @return newly expanded feature vector of the state
+	 */
+	public double[] getFeatures() {
+		double[] features = new double[codec.featureLength];
+		codec.decode(keyLo, keyHi, features);
+		return features;
+	}
+	
+	/**
+	 * Expands the feature vector of the state into <code>features</code>
+	 */
+	public void getFeatures(double[] features) {
+		codec.decode(keyLo, keyHi, features);
+	}
+	
+	public double getFeature(int i) {
+		return codec.feature(keyLo, keyHi, i);
+	}
+	
+	/**
+	 * @return one of the raw values packed in the key, indexed as in {@link StateCodec}
+	 */
+	public int getRaw(int index) {
+		return codec.raw(keyLo, keyHi, index);
 	}
 	
 	public static String vec2Str(double[] vector, int bD, int aD) {
@@ -66,28 +106,67 @@ public class State implements Comparable<State> {
 		return formatter.toString();
 	}
 	
-	public double getActionReward(int action) {
+	public synchronized double getStateReward() {
+		return stateReward;
+	}
+	
+	public synchronized void setStateReward(double stateReward) {
+		this.stateReward = stateReward;
+	}
+	
+	public synchronized boolean isTerminal() {
+		return terminalState;
+	}
+	
+	public synchronized void setTerminal(boolean terminalState) {
+		this.terminalState = terminalState;
+	}
+	
+	public synchronized double getActionReward(int action) {
 		return actionRewards[action];
 	}
 	
-	public double getBestReward() {
+	public synchronized double getBestReward() {
 		if (this.stateReward > actionRewards[bestAction]) return this.stateReward;
 		return actionRewards[bestAction];
 	}
 	
-	public int getBestAction() {
+	public synchronized int getBestAction() {
 		return bestAction;
 	}
 	
-	public void setActionReward(int action, double actionReward) {
+	public synchronized void setActionReward(int action, double actionReward) {
 		actionRewards[action] = actionReward;
 		if (actionRewards[bestAction] < actionReward) {
 			bestAction = action;
 		}
 	}
 	
+	/**
+	 * Atomically moves the value of <code>action</code> towards <code>target</code>:
+	 * Q(s,a) += learningRate * (target - Q(s,a))
+	 * 
+	 * @return the new action value
+	 */
+	public synchronized double updateActionReward(int action, double learningRate, double target) {
+		double actionReward = actionRewards[action] + learningRate * (target - actionRewards[action]);
+		setActionReward(action, actionReward);
+		return actionReward;
+	}
+	
+	/**
+	 * @return the live action values; use {@link #getActionRewards(double[])}
+	 * when the state is shared between threads
+	 */
 	public double[] getActionRewards() {
 		return this.actionRewards;
 	}
 	
+	/**
+	 * Copies the action values into <code>out</code>
+	 */
+	public synchronized void getActionRewards(double[] out) {
+		System.arraycopy(actionRewards, 0, out, 0, actionRewards.length);
+	}
+	
 }
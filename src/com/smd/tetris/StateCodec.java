@@ -0,0 +1,233 @@
+package com.smd.tetris;
+
+/**
+ * Packs the state of the board as seen by the current block into two
+ * <code>long</code>s, and expands a packed state back into the feature
+ * vector described in {@link TetrisModel#getFeatures()}.
+ * 
+ * <p>The model first collects the small integers the features are derived
+ * from into a raw <code>int[]</code> (see the index constants below). The
+ * column heights, block position, type and orientation are packed first so
+ * the bits that identify a state for the {@link StateSpace} form a prefix
+ * of the key.</p>
+ */
+public final class StateCodec {
+	
+	// Indexes into the raw vector; column heights follow from HEIGHTS on
+	public static final int BLOCK_ROW = 0;
+	public static final int BLOCK_COL = 1;
+	public static final int TYPE = 2;
+	public static final int ORIENTATION = 3;
+	public static final int LEFT = 4;
+	public static final int RIGHT = 5;
+	public static final int BOTTOM = 6;
+	public static final int ROW = 7;
+	public static final int COL = 8;
+	public static final int FIT = 9;
+	public static final int HEIGHTS = 10;
+	
+	private static final int NUM_TYPES = Block.BLOCK_TEMPLATES.length;
+	private static final int NUM_ORIENTATIONS = 4;
+	// The 5x5 block matrix may hang up to 4 cells outside the well
+	private static final int POSITION_BIAS = Block.BLOCK_TEMPLATES[0].length - 1;
+	
+	public final int rows;
+	public final int cols;
+	
+	/** Number of features used by the learners, including the bias term */
+	public final int numFeatures;
+	/** Length of the expanded vector: the features followed by the debug information */
+	public final int featureLength;
+	
+	private final int[] fieldIndex;
+	private final int[] fieldBias;
+	private final int[] fieldWidth;
+	private final int[] fieldPos;
+	/** Field holding each raw index */
+	private final int[] fieldOf;
+	
+	/** Bits of the key that identify a state for lookups */
+	public final long relevantMaskLo;
+	public final long relevantMaskHi;
+	
+	public StateCodec(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+		this.numFeatures = cols*2 - 1 + 2 + NUM_TYPES + NUM_ORIENTATIONS + 1;
+		this.featureLength = numFeatures + 3 + 4 + 1;
+		
+		int fields = cols + HEIGHTS;
+		fieldIndex = new int[fields];
+		fieldBias = new int[fields];
+		fieldWidth = new int[fields];
+		fieldPos = new int[fields];
+		fieldOf = new int[fields];
+		
+		int f = 0;
+		for (int i = 0; i < cols; i++)
+			f = field(f, HEIGHTS + i, 0, rows);
+		f = field(f, BLOCK_ROW, 0, rows);
+		f = field(f, BLOCK_COL, 0, cols);
+		f = field(f, TYPE, 0, NUM_TYPES - 1);
+		f = field(f, ORIENTATION, 0, NUM_ORIENTATIONS - 1);
+		int relevantBits = fieldPos[f-1] + fieldWidth[f-1];
+		f = field(f, LEFT, 0, 5);
+		f = field(f, RIGHT, 0, 5);
+		f = field(f, BOTTOM, 0, 5);
+		f = field(f, ROW, POSITION_BIAS, rows + POSITION_BIAS);
+		f = field(f, COL, POSITION_BIAS, cols + POSITION_BIAS);
+		f = field(f, FIT, 0, 1);
+		int totalBits = fieldPos[f-1] + fieldWidth[f-1];
+		if (totalBits > 2*Long.SIZE)
+			throw new IllegalArgumentException("Board " + rows + "x" + cols + " needs " + totalBits + " bits per state, at most " + 2*Long.SIZE + " are supported");
+		
+		relevantMaskLo = relevantBits >= Long.SIZE ? -1L : (1L << relevantBits) - 1;
+		relevantMaskHi = relevantBits <= Long.SIZE ? 0L : relevantBits == 2*Long.SIZE ? -1L : (1L << (relevantBits - Long.SIZE)) - 1;
+	}
+	
+	private int field(int f, int index, int bias, int maxValue) {
+		fieldIndex[f] = index;
+		fieldOf[index] = f;
+		fieldBias[f] = bias;
+		fieldWidth[f] = Long.SIZE - Long.numberOfLeadingZeros(maxValue);
+		fieldPos[f] = f == 0 ? 0 : fieldPos[f-1] + fieldWidth[f-1];
+		return f + 1;
+	}
+	
+	public int rawLength() {
+		return HEIGHTS + cols;
+	}
+	
+	/**
+	 * Packs the raw vector into <code>key[0]</code> (low bits) and
+	 * <code>key[1]</code> (high bits).
+	 */
+	public void pack(int[] raw, long[] key) {
+		long lo = 0, hi = 0;
+		for (int f = 0; f < fieldIndex.length; f++) {
+			long v = raw[fieldIndex[f]] + fieldBias[f];
+			assert v >= 0 && v < (1L << fieldWidth[f]) : "raw[" + fieldIndex[f] + "]=" + raw[fieldIndex[f]] + " out of range";
+			int pos = fieldPos[f];
+			if (pos >= Long.SIZE) {
+				hi |= v << (pos - Long.SIZE);
+			} else {
+				lo |= v << pos;
+				if (pos + fieldWidth[f] > Long.SIZE)
+					hi |= v >>> (Long.SIZE - pos);
+			}
+		}
+		key[0] = lo;
+		key[1] = hi;
+	}
+	
+	/**
+	 * @return raw value at <code>index</code> of the packed state
+	 */
+	public int raw(long lo, long hi, int index) {
+		int f = fieldOf[index];
+		int pos = fieldPos[f];
+		long v;
+		if (pos >= Long.SIZE) {
+			v = hi >>> (pos - Long.SIZE);
+		} else {
+			v = lo >>> pos;
+			if (pos + fieldWidth[f] > Long.SIZE)
+				v |= hi << (Long.SIZE - pos);
+		}
+		return (int)(v & ((1L << fieldWidth[f]) - 1)) - fieldBias[f];
+	}
+	
+	/**
+	 * Expands a packed state into <code>features</code>, which must be at
+	 * least {@link #featureLength} long.
+	 */
+	public void decode(long lo, long hi, double[] features) {
+		int prevHt = 0;
+		for (int i = 0; i < cols; i++) {
+			int ht = raw(lo, hi, HEIGHTS + i);
+			features[i] = ht;
+			if (i > 0)
+				features[cols + i - 1] = ht - prevHt;
+			prevHt = ht;
+		}
+		fill(features, raw(lo, hi, BLOCK_ROW), raw(lo, hi, BLOCK_COL), raw(lo, hi, TYPE), raw(lo, hi, ORIENTATION),
+				raw(lo, hi, LEFT), raw(lo, hi, RIGHT), raw(lo, hi, BOTTOM), raw(lo, hi, ROW), raw(lo, hi, COL), raw(lo, hi, FIT));
+	}
+	
+	/**
+	 * Expands an unpacked raw vector into <code>features</code>, which must
+	 * be at least {@link #featureLength} long.
+	 */
+	public void expand(int[] raw, double[] features) {
+		int prevHt = 0;
+		for (int i = 0; i < cols; i++) {
+			int ht = raw[HEIGHTS + i];
+			features[i] = ht;
+			if (i > 0)
+				features[cols + i - 1] = ht - prevHt;
+			prevHt = ht;
+		}
+		fill(features, raw[BLOCK_ROW], raw[BLOCK_COL], raw[TYPE], raw[ORIENTATION],
+				raw[LEFT], raw[RIGHT], raw[BOTTOM], raw[ROW], raw[COL], raw[FIT]);
+	}
+	
+	/**
+	 * Writes everything after the column heights and their differences, in
+	 * the order of {@link TetrisModel#getFeatures()}.
+	 */
+	private void fill(double[] features, int blockRow, int blockCol, int type, int orientation,
+			int left, int right, int bottom, int row, int col, int fit) {
+		int fIdx = 2*cols - 1;
+		features[fIdx++] = blockRow;
+		features[fIdx++] = blockCol;
+		for (int t = 0; t < NUM_TYPES; t++)
+			features[fIdx++] = t == type ? 1 : 0;
+		for (int o = 0; o < NUM_ORIENTATIONS; o++)
+			features[fIdx++] = o == orientation ? 1 : 0;
+		features[fIdx++] = 1; // bias term
+		features[fIdx++] = left;
+		features[fIdx++] = right;
+		features[fIdx++] = bottom;
+		// debug information, not part of the state
+		features[fIdx++] = row;
+		features[fIdx++] = col;
+		features[fIdx++] = type;
+		features[fIdx++] = orientation;
+		features[fIdx++] = fit;
+	}
+	
+	/**
+	 * @return feature <code>i</code> of the packed state without expanding
+	 * the whole vector
+	 */
+	public double feature(long lo, long hi, int i) {
+		if (i < cols)
+			return raw(lo, hi, HEIGHTS + i);
+		if (i < 2*cols - 1)
+			return raw(lo, hi, HEIGHTS + i - cols + 1) - raw(lo, hi, HEIGHTS + i - cols);
+		i -= 2*cols - 1;
+		if (i < 2)
+			return raw(lo, hi, BLOCK_ROW + i);
+		i -= 2;
+		if (i < NUM_TYPES)
+			return raw(lo, hi, TYPE) == i ? 1 : 0;
+		i -= NUM_TYPES;
+		if (i < NUM_ORIENTATIONS)
+			return raw(lo, hi, ORIENTATION) == i ? 1 : 0;
+		i -= NUM_ORIENTATIONS;
+		if (i == 0)
+			return 1; // bias
+		i -= 1;
+		if (i < 3)
+			return raw(lo, hi, LEFT + i);
+		i -= 3;
+		switch (i) {
+		case 0: return raw(lo, hi, ROW);
+		case 1: return raw(lo, hi, COL);
+		case 2: return raw(lo, hi, TYPE);
+		case 3: return raw(lo, hi, ORIENTATION);
+		default: return raw(lo, hi, FIT);
+		}
+	}
+	
+}
@@ -0,0 +1,11 @@
+package com.smd.tetris;
+
+/**
+ * Scores states for a search such as {@link TetrisBeamPlanner}; higher is
+ * better.
+ */
+public interface StateEvaluator {
+	
+	double value(LookAhead state);
+	
+}
@@ -4,8 +4,45 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Hash table of the states seen so far. States are keyed on the relevant
+ * bits of their packed {@link StateCodec} key and kept in an open addressing
+ * table with linear probing, so lookups and inserts take expected constant
+ * time and never box or allocate.
+ */
 public class StateSpace {
-	public List<State> states = new ArrayList<State>();
+	
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	
+	final long maskLo;
+	final long maskHi;
+	
+	private long[] keysLo;
+	private long[] keysHi;
+	private State[] states;
+	private int size = 0;
+	
+	public StateSpace(StateCodec codec) {
+		this(codec, INITIAL_CAPACITY);
+	}
+	/**
+	 * @param capacity initial table size, a power of two
+	 */
+	StateSpace(StateCodec codec, int capacity) {
+		this.maskLo = codec.relevantMaskLo;
+		this.maskHi = codec.relevantMaskHi;
+		this.keysLo = new long[capacity];
+		this.keysHi = new long[capacity];
+		this.states = new State[capacity];
+	}
+	
+	/**
+	 * @return whether states packed by <code>codec</code> can be stored here
+	 */
+	boolean accepts(StateCodec codec) {
+		return codec.relevantMaskLo == maskLo && codec.relevantMaskHi == maskHi;
+	}
+	
 	/**
 	 * Looks up a state in the state space only on the basis of features and no
 	 * other attributes of the state.
@@ -15,16 +52,19 @@ public class StateSpace {
 	 * @return State if found, else <code>null</code>
 	 */
 	public State lookupState(State state, boolean addIfNotPresent) {
-		State lookedUp = null;
-		int pos = Collections.binarySearch(this.states, state);
-		if (pos < 0) {
-			if (addIfNotPresent) {
-				this.states.add(-pos-1, state);
-				lookedUp = state;
-			}
-		} else
-			lookedUp = this.states.get(pos);
-		return lookedUp;
+		long lo = state.keyLo & maskLo;
+		long hi = state.keyHi & maskHi;
+		int slot = find(lo, hi);
+		if (states[slot] != null)
+			return states[slot];
+		if (!addIfNotPresent)
+			return null;
+		keysLo[slot] = lo;
+		keysHi[slot] = hi;
+		states[slot] = state;
+		if (++size * 2 > states.length)
+			grow();
+		return state;
 	}
 	/**
 	 * @see StateSpace#lookupState(State, boolean)
@@ -33,12 +73,85 @@ public class StateSpace {
 		return lookupState(state, true);
 	}
 	/**
-	 * Returns if the state represented by the feature vector is present
-	 * in the state space
+	 * Returns the state with this packed key if present in the state space
 	 * 
 	 * @see StateSpace#lookupState(State, boolean)
 	 */
-	public State lookupState(double[] features) {
-		return lookupState(new State(features, false, 0, features.length, 0, null), false);
+	public State lookupState(long keyLo, long keyHi) {
+		return states[find(keyLo & maskLo, keyHi & maskHi)];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return a copy of all states in ascending feature order. Meant for
+	 * display only; the copy is sorted on every call.
+	 */
+	public List<State> sortedStates() {
+		List<State> sorted = new ArrayList<State>(size());
+		collect(sorted);
+		Collections.sort(sorted);
+		return sorted;
+	}
+	
+	/**
+	 * Adds all states, in table order, to <code>out</code>
+	 */
+	void collect(List<State> out) {
+		for (State state : states) {
+			if (state != null)
+				out.add(state);
+		}
+	}
+	
+	/**
+	 * @return slot holding the key, or the empty slot where it would be inserted
+	 */
+	private int find(long lo, long hi) {
+		int mask = states.length - 1;
+		int slot = hash(lo, hi) & mask;
+		while (states[slot] != null) {
+			if (keysLo[slot] == lo && keysHi[slot] == hi)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private void grow() {
+		long[] oldLo = keysLo;
+		long[] oldHi = keysHi;
+		State[] oldStates = states;
+		keysLo = new long[oldLo.length * 2];
+		keysHi = new long[oldHi.length * 2];
+		states = new State[oldStates.length * 2];
+		int mask = states.length - 1;
+		for (int i = 0; i < oldStates.length; i++) {
+			if (oldStates[i] == null) continue;
+			int slot = hash(oldLo[i], oldHi[i]) & mask;
+			while (states[slot] != null)
+				slot = (slot + 1) & mask;
+			keysLo[slot] = oldLo[i];
+			keysHi[slot] = oldHi[i];
+			states[slot] = oldStates[i];
+		}
+	}
+	
+	private static int hash(long lo, long hi) {
+		return (int)mix(lo, hi);
+	}
+	
+	/**
+	 * 64 bit hash of a key. The table slot is taken from the low bits, so
+	 * partitioned tables should use the high bits.
+	 */
+	static long mix(long lo, long hi) {
+		long h = lo * 0x9E3779B97F4A7C15L + hi;
+		h ^= h >>> 33;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return h ^ (h >>> 29);
 	}
+	
 }
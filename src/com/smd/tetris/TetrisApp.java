@@ -1,5 +1,7 @@
 package com.smd.tetris;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import javax.xml.bind.Marshaller.Listener;
@@ -28,6 +30,17 @@ public class TetrisApp implements TetrisViewListener {
 	private static final int DELAY = 10;
 	private static final int TRAIN_CYCLES = 3000;
 	private static final boolean stopLearningAfterTraining = true;
+	// weights of the approx learner: loaded instead of training when the file
+	// exists, written after training otherwise. Set with -Dtetris.checkpoint=file
+	private static final String CHECKPOINT = System.getProperty("tetris.checkpoint");
+	// paint snapshots at this frame rate instead of following every move,
+	// without DELAY between moves. Set with -Dtetris.fps=n
+	private static final int FRAMES_PER_SECOND = Integer.getInteger("tetris.fps", 0);
+	// every game played is written to this log, flushed after each game.
+	// Set with -Dtetris.record=file
+	private static final String RECORD = System.getProperty("tetris.record");
+	// plays this log in the view instead of training. Set with -Dtetris.replay=file
+	private static final String REPLAY = System.getProperty("tetris.replay");
 	
 	private static final int[] ALLOWED_ACTIONS = {
 		DO_NOTHING, MOVE_LEFT, MOVE_RIGHT, ROT_CLOCK, ROT_COUNTER_CLOCK, DROP
@@ -41,6 +54,7 @@ public class TetrisApp implements TetrisViewListener {
 	private Planner learner;
 	private TetrisView tetrisView;
 	private Thread thread;
+	private GameRecorder recorder;
 	
 	public static void main(String[] args) {
 		
@@ -224,7 +238,7 @@ public class TetrisApp implements TetrisViewListener {
 		
 		int[] allowedActions = ALLOWED_ACTIONS;
 		//int[] allowedActions = {DO_NOTHING, ROT_CLOCK, ROT_COUNTER_CLOCK};
-		tetris = new TetrisModel(BOARD_HEIGHT + V_BOUNDARY, BOARD_WIDTH, BOARD_HEIGHT, allowedActions, true);
+		tetris = new TetrisModel(BOARD_HEIGHT + V_BOUNDARY, BOARD_WIDTH, BOARD_HEIGHT, allowedActions, true, TetrisModel.ENGINE_BITBOARD);
 
 		//learner = new TetrisRandomLearner(tetris);
 		learner = new TetrisApproxQLearner(tetris, allowedActions);
@@ -232,11 +246,23 @@ public class TetrisApp implements TetrisViewListener {
 		
 		learner.debugOff();
 		learner.startTrainingMode();
-		tetrisView = new TetrisView(tetris);
+		tetrisView = FRAMES_PER_SECOND > 0 ? new TetrisView(tetris, FRAMES_PER_SECOND) : new TetrisView(tetris);
 		tetrisView.setListener(this);
 		
 		tetrisView.disableView();
 		
+		if (REPLAY != null) {
+			startReplay();
+			return;
+		}
+		if (RECORD != null) {
+			try {
+				recorder = new GameRecorder(tetris, new File(RECORD));
+			} catch (IOException e) {
+				System.out.println("Could not record to " + RECORD + ": " + e.getMessage());
+			}
+		}
+		
 //		learner.debugOn();
 //		tetris.debugOn();
 //		tetrisView.enableView();
@@ -244,7 +270,8 @@ public class TetrisApp implements TetrisViewListener {
 		thread = new Thread() {
 
 			public void run() {
-				int epoch = 0;
+				boolean restored = loadCheckpoint();
+				int epoch = restored ? TRAIN_CYCLES + 1 : 0;
 				double averageBlocks = 0;
 				double averageRowsCompressed = 0;
 				while (!stopped) {
@@ -260,7 +287,7 @@ public class TetrisApp implements TetrisViewListener {
 							System.out.println(); // Blank Line
 					}
 					if (epoch > TRAIN_CYCLES) {
-						System.out.println("Total states: " + tetris.stateSpace.states.size());
+						System.out.println("Total states: " + tetris.stateSpace.size());
 						tetrisView.enableView();
 						//learner.debugOn();
 						//tetris.debugOn();
@@ -268,9 +295,11 @@ public class TetrisApp implements TetrisViewListener {
 							learner.stopTrainingMode();
 						if (epoch == TRAIN_CYCLES + 1) {
 							dispFirstStates(300); //System.exit(0);
+							if (!restored) saveCheckpoint();
 						}
 					}
 					runTetrisEpoch(tetris, epoch);
+					flushRecording();
 					averageBlocks += learner.getBlocksAccommodated();
 					averageRowsCompressed += learner.getRowsCompressed();
 					epoch++;
@@ -279,8 +308,8 @@ public class TetrisApp implements TetrisViewListener {
 
 			private void dispFirstStates(int num) {
 				System.out.println("------ First " + num + " ------");
-				List<com.smd.tetris.State> states = tetris.stateSpace.states;
-				for (int i = 0; i < num && i < tetris.stateSpace.states.size(); i++) {
+				List<com.smd.tetris.State> states = tetris.stateSpace.sortedStates();
+				for (int i = 0; i < num && i < states.size(); i++) {
 					com.smd.tetris.State state = states.get(i);
 					System.out.println(state.toString());
 				}
@@ -291,6 +320,73 @@ public class TetrisApp implements TetrisViewListener {
 		
 	}
 
+	/**
+	 * Plays the games in {@link #REPLAY} in the view, a move every DELAY
+	 */
+	private void startReplay() {
+		tetrisView.enableView();
+		thread = new Thread() {
+			public void run() {
+				try {
+					GameReplayer replayer = new GameReplayer(new File(REPLAY));
+					try {
+						replayer.replay(tetris, DELAY);
+						System.out.println("Replayed " + replayer.getGames() + " games, " + replayer.getBlocks()
+								+ " blocks, " + replayer.getRowsCompressed() + " rows compressed");
+					} finally {
+						replayer.close();
+					}
+				} catch (IOException e) {
+					System.out.println("Could not replay " + REPLAY + ": " + e.getMessage());
+				} catch (IllegalArgumentException e) {
+					System.out.println("Could not replay " + REPLAY + ": " + e.getMessage());
+				}
+			}
+		};
+		thread.start();
+	}
+	
+	private void flushRecording() {
+		if (recorder == null) return;
+		try {
+			recorder.flush();
+		} catch (IOException e) {
+			System.out.println("Could not record to " + RECORD + ": " + e.getMessage());
+			recorder = null;
+		}
+	}
+	
+	/**
+	 * @return whether the learner's weights were read from {@link #CHECKPOINT}
+	 */
+	private boolean loadCheckpoint() {
+		if (CHECKPOINT == null || !(learner instanceof TetrisApproxQLearner) || !new File(CHECKPOINT).exists())
+			return false;
+		try {
+			double[] weights = Checkpoint.loadWeights(new File(CHECKPOINT), tetris.getCodec());
+			double[] featureWeights = ((TetrisApproxQLearner)learner).getFeatureWeights();
+			System.arraycopy(weights, 0, featureWeights, 0, featureWeights.length);
+			System.out.println("Loaded " + CHECKPOINT + ", skipping training");
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not load " + CHECKPOINT + ": " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Could not load " + CHECKPOINT + ": " + e.getMessage());
+		}
+		return false;
+	}
+	
+	private void saveCheckpoint() {
+		if (CHECKPOINT == null || !(learner instanceof TetrisApproxQLearner))
+			return;
+		try {
+			Checkpoint.saveWeights(new File(CHECKPOINT), tetris.getCodec(), ((TetrisApproxQLearner)learner).getFeatureWeights());
+			System.out.println("Saved " + CHECKPOINT);
+		} catch (IOException e) {
+			System.out.println("Could not save " + CHECKPOINT + ": " + e.getMessage());
+		}
+	}
+
 	@SuppressWarnings("unused")
 	private Planner getDummyLearner(final TetrisModel tetris, int[] allowedActions) {
 		Planner learner = new TetrisApproxQLearner(tetris, allowedActions) {
@@ -301,8 +397,8 @@ public class TetrisApp implements TetrisViewListener {
 			int a = 0, p = 1;
 			public int proposeAction() {
 //				return super.proposeAction();
-				State state = tetris.getState();
-				stateBeforeAction = state;
+				tetris.getState(stateBeforeAction);
+				hasStateBeforeAction = true;
 				proposedAction = DO_NOTHING;
 				if (a < actions[p].length) proposedAction = actions[p][a++];
 				//proposedAction = actions[tetris.random(0, 2)];
@@ -326,24 +422,18 @@ public class TetrisApp implements TetrisViewListener {
 			tetris.newBlock(tblock, 0, START_COL);
 			for (int i = 0; !reset && !tetris.reachedLowestPossible(); i++) {
 				try {
-					if (tetrisView.isViewEnabled()) {
-						Thread.sleep(DELAY);
-					}
+					pause();
 					tetris.takeAction(learner.proposeAction());
-					if (tetrisView.isViewEnabled()) {
-						Thread.sleep(DELAY);
-					}
+					pause();
 					tetris.takeAction(TetrisModel.MOVE_DOWN);
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
 			}
-			if (tetrisView.isViewEnabled()) {
-				try {
-					Thread.sleep(DELAY);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+			try {
+				pause();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
 			//break;
 //			if (!reset)
@@ -356,6 +446,15 @@ public class TetrisApp implements TetrisViewListener {
 		}
 	}
 	
+	/**
+	 * Gives a label view time to follow the move; a snapshot view drops
+	 * frames instead of slowing the game down
+	 */
+	private void pause() throws InterruptedException {
+		if (tetrisView.isViewEnabled() && !tetrisView.paintsSnapshots())
+			Thread.sleep(DELAY);
+	}
+	
 	public void reset() {
 		synchronized(LOCK) {
 			this.reset = true;
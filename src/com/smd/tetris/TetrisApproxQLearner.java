@@ -1,15 +1,22 @@
 package com.smd.tetris;
 
-import java.util.Random;
+import java.util.Arrays;
 
 import static com.smd.tetris.TetrisModel.*;
 
-public class TetrisApproxQLearner implements TetrisListener, Planner {
+public class TetrisApproxQLearner implements TetrisListener, PlacementPlanner {
 	
 	private final TetrisModel tetris;
 	
-	protected State stateBeforeAction;
+	// state buffers, reused on every step
+	protected final LookAhead stateBeforeAction;
+	protected boolean hasStateBeforeAction = false;
+	private final LookAhead stateAfterAction;
+	private final LookAhead futureState;
 	protected int proposedAction = TetrisModel.ILLEGAL;
+	// normalized afterstate of the last placement, learned from at the next one
+	private final LookAhead placedState;
+	private boolean hasPlacedState = false;
 
 	private final double learningRate;
 	private final double decay;
@@ -32,6 +39,32 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 	
 	private final double[] featureWeights;
 	
+	// scratch buffers for the normalized features and look-ahead values
+	private final double[] sFeatures;
+	private final double[] maxQ = new double[2];
+	private final double[] actionQ;
+	private final int[] possible;
+	private final double[] possibleQ;
+	private final int[] possiblePlacements;
+	
+	// candidate afterstates of one decision, one feature vector per row, scored by batchQ
+	private final int featureLength;
+	private final double[] candidates;
+	private final double[] candidateQ;
+	private final double[] candidateReward;
+	private final boolean[] candidateTerminal;
+	private final int[] candidateAction;
+	// row of the best candidate found by the last getMaxQ
+	private int bestCandidate;
+	
+	// experience replay, see setReplayBuffer
+	private ReplayBuffer replay = null;
+	private int replayBatch = 0;
+	private final double[] nextFeatures;
+	private final double[] replayFeatures;
+	private final double[] replayNext;
+	private final double[] replayGradient;
+	
 	protected int rowsCompressed = 0;
 	protected int blocksAccommodated = 0;
 	
@@ -39,15 +72,50 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 		this(model, 0.05, 0.0001, DEFAULT_TEMP, EXPLORE_GLIE1, allowedActions);
 	}
 	
+	public TetrisApproxQLearner(TetrisModel model, int[] allowedActions, double[] featureWeights) {
+		this(model, 0.05, 0.0001, DEFAULT_TEMP, EXPLORE_GLIE1, allowedActions, featureWeights);
+	}
+	
 	public TetrisApproxQLearner(TetrisModel model, double decay, double learningRate, double temperature, int exploration_policy, int[] allowedActions) {
+		this(model, decay, learningRate, temperature, exploration_policy, allowedActions, new double[model.numFeatures]);
+	}
+	
+	/**
+	 * @param featureWeights weight vector updated in place by this learner. Several
+	 * learners may share one vector; updates are then applied without locking (Hogwild).
+	 */
+	public TetrisApproxQLearner(TetrisModel model, double decay, double learningRate, double temperature, int exploration_policy, int[] allowedActions,
+			double[] featureWeights) {
+		if (featureWeights.length != model.numFeatures)
+			throw new IllegalArgumentException("Expected " + model.numFeatures + " weights, got " + featureWeights.length);
 		this.tetris = model;
 		this.learningRate = learningRate;
 		this.decay = decay;
 		this.temperature = temperature;
 		this.exploration_policy = exploration_policy;
 		this.allowedActions = allowedActions;
-		this.featureWeights = new double[tetris.numFeatures];
-		model.addListener(this);
+		this.featureWeights = featureWeights;
+		this.stateBeforeAction = new LookAhead(model);
+		this.stateAfterAction = new LookAhead(model);
+		this.futureState = new LookAhead(model);
+		this.sFeatures = new double[model.getFeatureLength()];
+		this.actionQ = new double[allowedActions.length];
+		this.possible = new int[allowedActions.length];
+		this.possibleQ = new double[allowedActions.length];
+		this.placedState = new LookAhead(model);
+		this.possiblePlacements = new int[model.getMaxPlacements()];
+		int maxCandidates = Math.max(allowedActions.length, model.getMaxPlacements());
+		this.featureLength = model.getFeatureLength();
+		this.candidates = new double[maxCandidates * featureLength];
+		this.candidateQ = new double[maxCandidates];
+		this.candidateReward = new double[maxCandidates];
+		this.candidateTerminal = new boolean[maxCandidates];
+		this.candidateAction = new int[maxCandidates];
+		this.nextFeatures = new double[featureLength];
+		this.replayFeatures = new double[featureWeights.length];
+		this.replayNext = new double[featureWeights.length];
+		this.replayGradient = new double[featureWeights.length];
+		model.addListener(this, ROUND_STARTED | AFTER_ACTION | COMPRESSED | RESET);
 	}
 	
 	public void blockAtBottom(Block block) {
@@ -68,38 +136,38 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 
 	public void startRound() {
 		numTimeSteps = 0;
-		this.stateBeforeAction = null;
+		this.hasStateBeforeAction = false;
 		this.proposedAction = TetrisModel.ILLEGAL;
 		blocksAccommodated++;
 	}
 
 	public void afterAction(int action, boolean success) {
 		if (action == TetrisModel.MOVE_DOWN) { // some action taken by the policy
-			State state = tetris.getState();
-			if (stateBeforeAction != null) { // && stateBeforeAction.compareTo(state) != 0) {
+			LookAhead state = stateAfterAction;
+			tetris.getState(state);
+			if (hasStateBeforeAction) { // && stateBeforeAction.compareTo(state) != 0) {
 				if (debug) {
 					System.out.println("");
-					if (stateBeforeAction != null)
-						System.out.println(stateBeforeAction.toString()); // TODO Debug - to be commented later
+					System.out.println(stateBeforeAction.toString()); // TODO Debug - to be commented later
 					System.out.println(TetrisModel.actionStr(proposedAction) + ", reward=");
 					System.out.println(state.toString()); // TODO Debug - to be commented later
 				}
 			}
-			if (trainMode) {
+			if (trainMode && hasStateBeforeAction) {
 				updateWeights(stateBeforeAction, proposedAction, state, featureWeights);
 			}
 			numTimeSteps++;
-			if (state.completedRows != null && state.completedRows[0] > 0) {
+			if (state.completedRows[0] > 0) {
 				tetris.compressRowsCompleted();
 			}
-			stateBeforeAction = null;
+			hasStateBeforeAction = false;
 			proposedAction = TetrisModel.ILLEGAL;
 		}
 	}
 
-	private void updateWeights(State stateBeforeAction, int action, State stateAfterAction,
+	private void updateWeights(LookAhead stateBeforeAction, int action, LookAhead stateAfterAction,
 			double[] featureWeights) {
-		double[] sFeatures = relevantFeatures(stateBeforeAction.features);
+		relevantFeatures(stateBeforeAction.features, sFeatures);
 //		if (stateAfterAction.completedRows != null && stateAfterAction.completedRows[0] > 0) {
 //			System.out.println("Found completed rows: " + stateAfterAction.completedRows[0] + ", reward: " + stateAfterAction.stateReward);
 //		}
@@ -107,35 +175,60 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 				stateBeforeAction.stateReward : Q(sFeatures, action, featureWeights);
 		double[] maxQ = getMaxQ(featureWeights);
 		int bestAction = (int)maxQ[0];
+		// the look-ahead for the best next action is timed on its own
+		Metrics metrics = tetris.getMetrics();
+		long start = metrics != null ? System.nanoTime() : 0;
+		if (replay != null) {
+			// the value of a terminal state is its reward, nothing to learn
+			if (!stateBeforeAction.terminalState) {
+				if (bestAction != ILLEGAL && !stateAfterAction.terminalState)
+					remember(sFeatures, action, stateBeforeAction.stateReward, bestCandidate);
+				else
+					replay.add(sFeatures, action, stateBeforeAction.stateReward + decay*stateAfterAction.stateReward, null, true);
+			}
+			replayWeights(featureWeights);
+			if (metrics != null) metrics.time(Metrics.WEIGHT_UPDATE, System.nanoTime() - start);
+			return;
+		}
 		double change = learningRate*(stateBeforeAction.stateReward + decay*stateAfterAction.stateReward - qState);
 		if (bestAction != ILLEGAL && !stateAfterAction.terminalState)
 			change = learningRate*(stateBeforeAction.stateReward + decay*maxQ[1] - qState);
 		for (int i = 0; i < featureWeights.length; i++) {
 			featureWeights[i] += change*sFeatures[i];
 		}
+		if (metrics != null) metrics.time(Metrics.WEIGHT_UPDATE, System.nanoTime() - start);
 		if (debug)
 			System.out.println(State.vec2Str(maxQ, 4, 4) + ", Change by:" + change + "\n" + State.vec2Str(featureWeights, 4, 6));
 	}
 
+	/**
+	 * @return the learner's buffer holding the best action and its Q value,
+	 * overwritten by the next call
+	 */
 	private double[] getMaxQ(double[] featureWeights) {
-		double[] ret = new double[2];
+		double[] ret = maxQ;
 		ret[0] = ILLEGAL;
 		ret[1] = Double.MIN_VALUE;
-		double[] actionQ = new double[allowedActions.length];
+		Arrays.fill(actionQ, 0);
+		LookAhead sPrime = futureState;
+		int n = 0;
 		for (int a : allowedActions) {
-			State sPrime = tetris.getFutureStateIfAllowed(a);
-			if (sPrime != null) {
-				double[] sPrimeFeatures = relevantFeatures(sPrime.features);
-				actionQ[a] = sPrime.terminalState ? 
-						sPrime.stateReward : Q(sPrimeFeatures, a, featureWeights);
-				if (ret[0] == ILLEGAL || actionQ[a] > ret[1]) {
-					ret[0] = a;
-					ret[1] = actionQ[a];
-				}
+			if (tetris.lookAhead(a, sPrime)) {
+				addCandidate(n++, sPrime);
+				candidateAction[n-1] = a;
+			}
+		}
+		scoreCandidates(n, featureWeights);
+		for (int i = 0; i < n; i++) {
+			int a = candidateAction[i];
+			actionQ[a] = candidateQ[i];
+			if (ret[0] == ILLEGAL || actionQ[a] > ret[1]) {
+				ret[0] = a;
+				ret[1] = actionQ[a];
+				bestCandidate = i;
 			}
 		}
 		// send out a random policy in case more than one best is found
-		int[] possible = new int[actionQ.length];
 		int maxA = 0;
 		for (int i = 0; i < actionQ.length; i++) {
 			if (actionQ[i] == ret[1]) {
@@ -150,6 +243,129 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 		return ret;
 	}
 
+	/**
+	 * Uses <code>replay</code> for training: every transition is stored and
+	 * each step updates the weights with the mean gradient of
+	 * <code>batchSize</code> transitions sampled from it, once it holds that
+	 * many. The next state of a transition is the best candidate at the
+	 * time it was stored. <code>null</code> goes back to one online update
+	 * per transition.
+	 */
+	public void setReplayBuffer(ReplayBuffer replay, int batchSize) {
+		if (replay != null) {
+			if (replay.numFeatures() != featureWeights.length)
+				throw new IllegalArgumentException("Replay buffer stores " + replay.numFeatures() + " features, expected " + featureWeights.length);
+			if (batchSize <= 0)
+				throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		this.replay = replay;
+		this.replayBatch = batchSize;
+	}
+	
+	public ReplayBuffer getReplayBuffer() {
+		return replay;
+	}
+	
+	/**
+	 * Stores a transition whose target bootstraps from candidate
+	 * <code>next</code>; a terminal candidate contributes its reward.
+	 */
+	private void remember(double[] features, int action, double reward, int next) {
+		if (candidateTerminal[next]) {
+			replay.add(features, action, reward + decay*candidateReward[next], null, true);
+			return;
+		}
+		System.arraycopy(candidates, next * featureLength, nextFeatures, 0, featureLength);
+		relevantFeatures(nextFeatures, nextFeatures);
+		replay.add(features, action, reward, nextFeatures, false);
+	}
+	
+	private void replayWeights(double[] featureWeights) {
+		int size = replay.size();
+		if (size < replayBatch) return;
+		Arrays.fill(replayGradient, 0);
+		for (int b = 0; b < replayBatch; b++) {
+			int index = tetris.random(0, size-1);
+			boolean terminal = replay.read(index, replayFeatures, replayNext);
+			int action = replay.action(index);
+			double target = replay.reward(index);
+			if (!terminal) target += decay*Q(replayNext, action, featureWeights);
+			double change = target - Q(replayFeatures, action, featureWeights);
+			for (int i = 0; i < replayGradient.length; i++) {
+				replayGradient[i] += change*replayFeatures[i];
+			}
+		}
+		double step = learningRate / replayBatch;
+		for (int i = 0; i < featureWeights.length; i++) {
+			featureWeights[i] += step*replayGradient[i];
+		}
+	}
+
+	private void addCandidate(int i, LookAhead state) {
+		System.arraycopy(state.features, 0, candidates, i * featureLength, featureLength);
+		candidateTerminal[i] = state.terminalState;
+		candidateReward[i] = state.stateReward;
+	}
+	
+	/**
+	 * Fills <code>candidateQ</code> for the first <code>count</code> candidates:
+	 * the reward of terminal states, the Q value of the normalized features
+	 * of all others
+	 */
+	private void scoreCandidates(int count, double[] featureWeights) {
+		batchQ(candidates, featureLength, count, featureWeights, candidateQ);
+		for (int i = 0; i < count; i++) {
+			if (candidateTerminal[i]) candidateQ[i] = candidateReward[i];
+		}
+	}
+	
+	/**
+	 * Q values of <code>count</code> feature vectors stored row after row in
+	 * <code>features</code>, each <code>stride</code> long. Equals
+	 * {@link #relevantFeatures(double[], double[])} followed by
+	 * {@link #Q(double[], int, double[])} for each row up to rounding, but
+	 * the normalization is folded into the result and two rows share each
+	 * pass over the weights, so nothing is written back.
+	 */
+	static void batchQ(double[] features, int stride, int count, double[] weights, double[] q) {
+		int n = weights.length;
+		int i = 0;
+		for (; i + 1 < count; i += 2) {
+			int r0 = i * stride, r1 = r0 + stride;
+			double dot0 = 0, dot1 = 0, sq0 = 0, sq1 = 0;
+			for (int j = 0; j < n; j++) {
+				double w = weights[j];
+				double f0 = features[r0 + j], f1 = features[r1 + j];
+				dot0 += f0 * w;
+				dot1 += f1 * w;
+				sq0 += f0 * f0;
+				sq1 += f1 * f1;
+			}
+			// entries past the weights only count towards the norm
+			for (int j = n; j < stride; j++) {
+				double f0 = features[r0 + j], f1 = features[r1 + j];
+				sq0 += f0 * f0;
+				sq1 += f1 * f1;
+			}
+			q[i] = sq0 == 0 ? dot0 : dot0 / Math.sqrt(sq0);
+			q[i+1] = sq1 == 0 ? dot1 : dot1 / Math.sqrt(sq1);
+		}
+		if (i < count) {
+			int r0 = i * stride;
+			double dot0 = 0, sq0 = 0;
+			for (int j = 0; j < n; j++) {
+				double f0 = features[r0 + j];
+				dot0 += f0 * weights[j];
+				sq0 += f0 * f0;
+			}
+			for (int j = n; j < stride; j++) {
+				double f0 = features[r0 + j];
+				sq0 += f0 * f0;
+			}
+			q[i] = sq0 == 0 ? dot0 : dot0 / Math.sqrt(sq0);
+		}
+	}
+
 	private double Q(double[] sFeatures, int action, double[] featureWeights) {
 		double q = 0;
 		for (int i = 0; i < featureWeights.length; i++) {
@@ -158,18 +374,23 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 		return q;
 	}
 
-	private double[] relevantFeatures(double[] features) {
-		double[] relFeatures = features.clone();
+	/**
+	 * Writes the L2 normalized <code>features</code> into <code>relFeatures</code>,
+	 * which may be the same array.
+	 */
+	private void relevantFeatures(double[] features, double[] relFeatures) {
 		double sum = 0;
 		for (double v : features) {
 			sum += (v*v);
 		}
-		if (sum == 0.0) return relFeatures;
+		if (sum == 0.0) {
+			System.arraycopy(features, 0, relFeatures, 0, features.length);
+			return;
+		}
 		sum = Math.sqrt(sum);
 		for (int i = 0; i < relFeatures.length; i++) {
-			relFeatures[i] = relFeatures[i] / sum;
+			relFeatures[i] = features[i] / sum;
 		}
-		return relFeatures;
 	}
 
 	public void beforeAction(int action) {
@@ -177,8 +398,9 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 	}
 
 	public int proposeAction() {
-		State state = tetris.getState();
-		stateBeforeAction = state;
+		LookAhead state = stateBeforeAction;
+		tetris.getState(state);
+		hasStateBeforeAction = true;
 		proposedAction = TetrisModel.ILLEGAL;
 		if (!this.trainMode) {
 			//System.out.println("Best Policy");
@@ -198,10 +420,10 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 				proposedAction = DROP;
 			else 
 				if (exploration_policy == EXPLORE_GLIE2) {
-				proposedAction = getBoltzmanExplorationAction(state);
+				proposedAction = getBoltzmanExplorationAction();
 			} else {
 				// GLIE1
-				double rnd = random.nextDouble();
+				double rnd = tetris.randomDouble();
 				if (rnd < epsilon) {
 					int act = tetris.random(0, allowedActions.length-1);
 					proposedAction = allowedActions[act];
@@ -216,15 +438,18 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 		return proposedAction;
 	}
 	
-	private int getBoltzmanExplorationAction(State state) {
+	/**
+	 * Samples an action with probabilities following the look-ahead Q values
+	 */
+	private int getBoltzmanExplorationAction() {
+		getMaxQ(featureWeights);
 		double sum = 0;
-		double[] actionRewards = state.getActionRewards();
-		double[] vals = new double[allowedActions.length];
+		double[] vals = possibleQ;
 		for (int i = 0; i < vals.length; i++) {
-			vals[i] = Math.exp(actionRewards[allowedActions[i]] / temperature);
+			vals[i] = Math.exp(actionQ[allowedActions[i]] / temperature);
 			sum += vals[i];
 		}
-		double prob = random.nextDouble();
+		double prob = tetris.randomDouble();
 		int action = TetrisModel.DO_NOTHING;
 		for (int i = 0; i < allowedActions.length; i++) {
 			vals[i] = vals[i] / sum + (i == 0 ? 0.0 : vals[i-1]); // cumulative
@@ -237,6 +462,78 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 		return action;
 	}
 
+	/**
+	 * Picks the placement whose afterstate has the highest Q value, exploring
+	 * like {@link #proposeAction()}. In training mode the afterstate chosen
+	 * for the previous block is updated towards its reward plus the decayed
+	 * best value found now.
+	 */
+	public int proposePlacement(Placement[] placements, int count) {
+		LookAhead sPrime = futureState;
+		for (int i = 0; i < count; i++) {
+			tetris.lookAhead(placements[i], sPrime);
+			addCandidate(i, sPrime);
+		}
+		scoreCandidates(count, featureWeights);
+		double[] placementQ = candidateQ;
+		int best = 0;
+		for (int i = 1; i < count; i++) {
+			if (placementQ[i] > placementQ[best]) best = i;
+		}
+		Metrics metrics = tetris.getMetrics();
+		long start = metrics != null ? System.nanoTime() : 0;
+		if (trainMode && hasPlacedState && replay != null) {
+			remember(placedState.features, PLACE, placedState.stateReward, best);
+			replayWeights(featureWeights);
+		} else if (trainMode && hasPlacedState) {
+			double[] features = placedState.features;
+			double change = learningRate*(placedState.stateReward + decay*placementQ[best]
+					- Q(features, PLACE, featureWeights));
+			for (int i = 0; i < featureWeights.length; i++) {
+				featureWeights[i] += change*features[i];
+			}
+		}
+		if (metrics != null && trainMode && hasPlacedState)
+			metrics.time(Metrics.WEIGHT_UPDATE, System.nanoTime() - start);
+		// send out a random placement in case more than one best is found
+		int maxP = 0;
+		for (int i = 0; i < count; i++) {
+			if (placementQ[i] == placementQ[best]) {
+				possiblePlacements[maxP++] = i;
+			}
+		}
+		int chosen = maxP > 1 ? possiblePlacements[tetris.random(0, maxP-1)] : best;
+		if (trainMode) {
+			if (exploration_policy == EXPLORE_GLIE2) {
+				chosen = getBoltzmanExplorationPlacement(count);
+			} else if (tetris.randomDouble() < epsilon) {
+				chosen = tetris.random(0, count-1);
+			}
+		}
+		System.arraycopy(candidates, chosen * featureLength, placedState.features, 0, featureLength);
+		relevantFeatures(placedState.features, placedState.features);
+		placedState.stateReward = candidateReward[chosen];
+		hasPlacedState = !candidateTerminal[chosen];
+		return chosen;
+	}
+	
+	/**
+	 * Samples a placement with probabilities following the afterstate Q values
+	 */
+	private int getBoltzmanExplorationPlacement(int count) {
+		double[] placementQ = candidateQ;
+		double sum = 0;
+		for (int i = 0; i < count; i++) {
+			sum += Math.exp(placementQ[i] / temperature);
+		}
+		double prob = tetris.randomDouble() * sum;
+		for (int i = 0; i < count; i++) {
+			prob -= Math.exp(placementQ[i] / temperature);
+			if (prob < 0) return i;
+		}
+		return count - 1;
+	}
+
 	public void dispState() {
 		State state = tetris.getState();
 		System.out.println(state.toString());
@@ -245,6 +542,7 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 	public void reset() {
 		blocksAccommodated = 0;
 		rowsCompressed = 0;
+		hasPlacedState = false;
 	}
 	
 	public void startTrainingMode() {
@@ -256,6 +554,14 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 		this.trainMode = false;
 	}
 	
+	/**
+	 * Turns training off without announcing it, for the many learners a
+	 * harness creates just to play
+	 */
+	void stopTrainingQuietly() {
+		this.trainMode = false;
+	}
+	
 	public void debugOn() {
 		this.debug = true;
 	}
@@ -264,14 +570,19 @@ public class TetrisApproxQLearner implements TetrisListener, Planner {
 		this.debug = false;
 	}
 	
-	private final Random random = new Random();
-
 	public boolean isInTrainingMode() {
 		return this.trainMode;
 	}
 
-	public void compressed(int rows) {
-		rowsCompressed += rows;
+	public void compressed(int[] rows) {
+		rowsCompressed += rows.length;
+	}
+
+	/**
+	 * @return the live weight vector, not a copy
+	 */
+	public double[] getFeatureWeights() {
+		return this.featureWeights;
 	}
 
 	public int getBlocksAccommodated() {
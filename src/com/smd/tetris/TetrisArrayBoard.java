@@ -0,0 +1,112 @@
+package com.smd.tetris;
+
+/**
+ * The original board: one int per cell, blocks walked cell by cell.
+ */
+class TetrisArrayBoard extends TetrisBoard {
+	
+	private final int[][] board;
+	private final int[][] spare;
+	
+	TetrisArrayBoard(int rows, int cols) {
+		super(rows, cols);
+		this.board = new int[rows][cols];
+		this.spare = new int[rows][];
+	}
+	
+	boolean isOccupied(int row, int col) {
+		return board[row][col] > 0;
+	}
+	
+	boolean fits(BlockShape shape, int row, int col) {
+		int[][] blockMat = shape.blockMat;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (blockMat[i][j] > 0 && board[row+i][col+j] > 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	void place(BlockShape shape, int row, int col) {
+		int[][] blockMat = shape.blockMat;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (blockMat[i][j] > 0) {
+					if (board[row+i][col+j] == 0) cellSet(row+i, col+j);
+					board[row+i][col+j] = blockMat[i][j];
+				}
+			}
+		}
+	}
+	
+	void clear(BlockShape shape, int row, int col) {
+		int[][] blockMat = shape.blockMat;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (blockMat[i][j] > 0 && board[row+i][col+j] > 0) {
+					cellCleared(row+i, col+j);
+					board[row+i][col+j] = 0;
+				}
+			}
+		}
+	}
+	
+	void removeRows(int[] removed, int count) {
+		// move the row arrays themselves and reuse the removed ones at the top
+		int[] top = board[0];
+		int k = 0;
+		for (int src = rows - 1; src >= 0; src--) {
+			if (k < count && removed[k] == src) {
+				spare[k++] = board[src];
+			} else if (k > 0) {
+				board[src + k] = board[src];
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (spare[i] != top) System.arraycopy(top, 0, spare[i], 0, cols);
+			board[i] = spare[i];
+		}
+		rowsRemoved(removed, count);
+	}
+	
+	void restoreRows(int[] removed, int count) {
+		// the row arrays uncovered at the top become the removed rows again
+		for (int i = 0; i < count; i++) {
+			spare[i] = board[i];
+		}
+		int k = count;
+		for (int r = 0; r < rows; r++) {
+			if (k > 0 && removed[k-1] == r) {
+				int[] filled = spare[--k];
+				for (int j = 0; j < cols; j++) {
+					filled[j] = 1;
+				}
+				board[r] = filled;
+			} else {
+				board[r] = board[r + k];
+			}
+		}
+		rowsRestored(removed, count);
+	}
+	
+	void copyFrom(TetrisBoard other) {
+		int[][] source = ((TetrisArrayBoard) other).board;
+		for (int i = 0; i < rows; i++) {
+			System.arraycopy(source[i], 0, board[i], 0, cols);
+		}
+		trackingCopied(other);
+	}
+	
+	void reset() {
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < cols; j++) {
+				board[i][j] = 0;
+			}
+		}
+		trackingReset();
+	}
+	
+}
@@ -0,0 +1,307 @@
+package com.smd.tetris;
+
+import static com.smd.tetris.TetrisModel.*;
+
+/**
+ * Chooses placements by beam search over the current and the next block.
+ * Every placement of the current block is scored by the evaluator; the
+ * <code>width</code> best are expanded with every placement of the
+ * {@link TetrisModel#previewBlock() next} block, and the placement leading
+ * to the best pair wins. A pair is worth the reward of the first state plus
+ * the value of the second. Placements that end the game, or after which
+ * the next block cannot enter, are only chosen when nothing else is left.
+ * <p>
+ * With a time budget, expansion stops once the budget of the decision is
+ * used up; the best placement expanded so far wins, and at least the most
+ * promising one is always expanded. The planner does not learn; in step
+ * mode it plans once per block and then moves the block there.
+ */
+public class TetrisBeamPlanner implements PlacementPlanner, TetrisListener {
+
+	/** The reward the model gives the state */
+	public static final StateEvaluator REWARD = new StateEvaluator() {
+		public double value(LookAhead state) {
+			return state.stateReward;
+		}
+	};
+
+	/**
+	 * @return evaluator using <code>featureWeights</code> as the afterstate
+	 * values {@link TetrisApproxQLearner} learns in placement mode. The live
+	 * array is read, so it may still be trained.
+	 */
+	public static StateEvaluator weights(final double[] featureWeights) {
+		final double[] q = new double[1];
+		return new StateEvaluator() {
+			public double value(LookAhead state) {
+				if (state.terminalState) return state.stateReward;
+				TetrisApproxQLearner.batchQ(state.features, state.features.length, 1, featureWeights, q);
+				return q[0];
+			}
+		};
+	}
+
+	public static final int DEFAULT_WIDTH = 8;
+
+	private final TetrisModel tetris;
+	private final StateEvaluator evaluator;
+	private final int width;
+	private final long budgetNanos;
+	private final int startCol;
+
+	private final LookAhead state;
+	private final Placement[] nextPlacements;
+	private final double[] firstReward;
+	private final double[] firstScore;
+	private final boolean[] firstEnds;
+	// expanded, but the next block has nowhere to go
+	private final boolean[] firstBlocked;
+	private final int[] order;
+	private long nodes = 0;
+	private long decisions = 0;
+
+	// step mode: the placement planned for the current block
+	private final Placement[] placements;
+	private boolean planned = false;
+	private boolean hasTarget = false;
+	private int targetOrientation;
+	private int targetRotation;
+	private int targetCol;
+
+	protected int rowsCompressed = 0;
+	protected int blocksAccommodated = 0;
+
+	/**
+	 * @param startCol column the next block enters at, in row 0
+	 */
+	public TetrisBeamPlanner(TetrisModel model, StateEvaluator evaluator, int startCol) {
+		this(model, evaluator, DEFAULT_WIDTH, 0, startCol);
+	}
+
+	/**
+	 * @param width number of placements of the current block expanded
+	 * @param budgetNanos time per decision, 0 for no limit
+	 * @param startCol column the next block enters at, in row 0
+	 */
+	public TetrisBeamPlanner(TetrisModel model, StateEvaluator evaluator, int width, long budgetNanos, int startCol) {
+		if (width <= 0)
+			throw new IllegalArgumentException("Beam width must be positive: " + width);
+		if (budgetNanos < 0)
+			throw new IllegalArgumentException("Time budget must not be negative: " + budgetNanos);
+		this.tetris = model;
+		this.evaluator = evaluator;
+		this.width = width;
+		this.budgetNanos = budgetNanos;
+		this.startCol = startCol;
+		int max = model.getMaxPlacements();
+		this.state = new LookAhead(model);
+		this.nextPlacements = new Placement[max];
+		this.placements = new Placement[max];
+		this.firstReward = new double[max];
+		this.firstScore = new double[max];
+		this.firstEnds = new boolean[max];
+		this.firstBlocked = new boolean[max];
+		this.order = new int[max];
+		model.addListener(this, ROUND_STARTED | AFTER_ACTION | COMPRESSED | RESET);
+	}
+
+	public int proposePlacement(Placement[] placements, int count) {
+		long deadline = System.nanoTime() + budgetNanos;
+		decisions++;
+		for (int i = 0; i < count; i++) {
+			tetris.lookAhead(placements[i], state);
+			firstReward[i] = state.stateReward;
+			firstScore[i] = evaluator.value(state);
+			firstEnds[i] = state.terminalState;
+			firstBlocked[i] = false;
+			nodes++;
+		}
+		int beam = Math.min(width, count);
+		selectBest(count, beam);
+
+		int next = tetris.previewBlock();
+		int best = order[0];
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < beam; k++) {
+			if (k > 0 && budgetNanos > 0 && System.nanoTime() - deadline > 0) break;
+			int i = order[k];
+			if (firstEnds[i]) continue;
+			int n = tetris.getPlacements(placements[i], next, 0, startCol, nextPlacements);
+			double value = Double.NEGATIVE_INFINITY;
+			for (int j = 0; j < n; j++) {
+				tetris.lookAhead(placements[i], nextPlacements[j], state);
+				double v = state.terminalState ? Double.NEGATIVE_INFINITY : evaluator.value(state);
+				if (v > value) value = v;
+			}
+			nodes += n;
+			if (value == Double.NEGATIVE_INFINITY) firstBlocked[i] = true;
+			if (firstReward[i] + value > bestScore) {
+				bestScore = firstReward[i] + value;
+				best = i;
+			}
+		}
+		if (bestScore == Double.NEGATIVE_INFINITY)
+			best = fallback(count);
+		return best;
+	}
+
+	/**
+	 * Picks a placement when no expanded pair was worth anything: the best
+	 * scored one that does not end the game and was not found to block the
+	 * next block, then one that only blocks it, and one that ends the game
+	 * only when all do
+	 */
+	private int fallback(int count) {
+		int best = -1;
+		int bestRank = -1;
+		for (int i = 0; i < count; i++) {
+			int rank = firstEnds[i] ? 0 : firstBlocked[i] ? 1 : 2;
+			if (rank > bestRank || (rank == bestRank && firstScore[i] > firstScore[best])) {
+				best = i;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Moves the indices of the <code>beam</code> best first scores to the
+	 * front of {@link #order}, best first
+	 */
+	private void selectBest(int count, int beam) {
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		for (int k = 0; k < beam; k++) {
+			int max = k;
+			for (int i = k + 1; i < count; i++) {
+				if (firstScore[order[i]] > firstScore[order[max]]) max = i;
+			}
+			int t = order[k];
+			order[k] = order[max];
+			order[max] = t;
+		}
+	}
+
+	/**
+	 * Plans the placement of a new block on its first call, then turns the
+	 * block, shifts it and drops it there. When a turn or shift is blocked
+	 * on the way down the placement is planned again from where the block
+	 * is, as the one chosen may no longer be reachable.
+	 */
+	public int proposeAction() {
+		if (!planned) {
+			planned = true;
+			int count = tetris.getPlacements(placements);
+			hasTarget = count > 0;
+			if (hasTarget) {
+				Placement target = placements[proposePlacement(placements, count)];
+				targetOrientation = target.orientation;
+				targetRotation = target.rotation;
+				targetCol = target.col;
+			}
+		}
+		if (!hasTarget) return DROP;
+		if (tetris.block.getOrientation() != targetOrientation)
+			return targetRotation == -1 ? ROT_COUNTER_CLOCK : ROT_CLOCK;
+		int col = tetris.getCol();
+		if (col < targetCol) return MOVE_RIGHT;
+		if (col > targetCol) return MOVE_LEFT;
+		return DROP;
+	}
+
+	/**
+	 * @return number of states evaluated so far
+	 */
+	public long getNodesSearched() {
+		return nodes;
+	}
+
+	/**
+	 * @return number of placements chosen so far
+	 */
+	public long getDecisions() {
+		return decisions;
+	}
+
+	public void startRound() {
+		planned = false;
+		blocksAccommodated++;
+	}
+
+	public void afterAction(int action, boolean success) {
+		if (!success && action != MOVE_DOWN)
+			planned = false;
+		// in step mode nobody else removes the rows the block completed
+		if (action == MOVE_DOWN && tetris.reachedLowestPossible())
+			tetris.compressRowsCompleted();
+	}
+
+	public void compressed(int[] rows) {
+		rowsCompressed += rows.length;
+	}
+
+	public void reset() {
+		blocksAccommodated = 0;
+		rowsCompressed = 0;
+	}
+
+	public void setBlock(Block block, int row, int col) {
+		// do nothing
+	}
+
+	public void clearBlock(Block block, int row, int col) {
+		// do nothing
+	}
+
+	public void blockAtBottom(Block block) {
+		// do nothing
+	}
+
+	public void boardFull() {
+		// do nothing
+	}
+
+	public void beforeAction(int action) {
+		// do nothing
+	}
+
+	public void dispState() {
+		State state = tetris.getState();
+		System.out.println(state.toString());
+	}
+
+	public void debugOn() {
+		// do nothing
+	}
+
+	public void debugOff() {
+		// do nothing
+	}
+
+	public void startTrainingMode() {
+		// nothing to learn
+	}
+
+	public void stopTrainingMode() {
+		// nothing to learn
+	}
+
+	public boolean isInTrainingMode() {
+		return false;
+	}
+
+	public int getBlocksAccommodated() {
+		return this.blocksAccommodated;
+	}
+
+	public int getRowsCompressed() {
+		return this.rowsCompressed;
+	}
+
+	public void resetCounts() {
+		blocksAccommodated = 0;
+		rowsCompressed = 0;
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.smd.tetris;
+
+/**
+ * Board with one bit mask per row (bit j set when column j is occupied).
+ * Collision checks and placement use the precomputed row masks of
+ * the block, so each block row costs a shift and an AND/OR.
+ */
+class TetrisBitBoard extends TetrisBoard {
+	
+	private final long[] board;
+	private final long filledRow;
+	
+	TetrisBitBoard(int rows, int cols) {
+		super(rows, cols);
+		if (cols > Long.SIZE)
+			throw new IllegalArgumentException("Bitboard supports at most " + Long.SIZE + " columns, got " + cols);
+		this.board = new long[rows];
+		this.filledRow = -1L >>> (Long.SIZE - cols);
+	}
+	
+	/**
+	 * Moves a block row mask to column <code>col</code> of the board.
+	 * <code>col</code> may be negative when the empty left columns of
+	 * the block matrix hang outside the well.
+	 */
+	private static long shift(long mask, int col) {
+		return col >= 0 ? mask << col : mask >>> -col;
+	}
+	
+	boolean isOccupied(int row, int col) {
+		return (board[row] & (1L << col)) != 0;
+	}
+	
+	boolean fits(BlockShape shape, int row, int col) {
+		long[] masks = shape.rowMasks;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			if ((board[row+i] & shift(masks[i], col)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	void place(BlockShape shape, int row, int col) {
+		long[] masks = shape.rowMasks;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			long mask = shift(masks[i], col);
+			for (long added = mask & ~board[row+i]; added != 0; added &= added - 1) {
+				cellSet(row+i, Long.numberOfTrailingZeros(added));
+			}
+			board[row+i] |= mask;
+		}
+	}
+	
+	void clear(BlockShape shape, int row, int col) {
+		long[] masks = shape.rowMasks;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			long mask = shift(masks[i], col);
+			for (long removed = mask & board[row+i]; removed != 0; removed &= removed - 1) {
+				cellCleared(row+i, Long.numberOfTrailingZeros(removed));
+			}
+			board[row+i] &= ~mask;
+		}
+	}
+	
+	void removeRows(int[] removed, int count) {
+		long top = board[0];
+		int k = 0;
+		for (int src = rows - 1; src >= 0; src--) {
+			if (k < count && removed[k] == src) {
+				k++;
+			} else if (k > 0) {
+				board[src + k] = board[src];
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			board[i] = top;
+		}
+		rowsRemoved(removed, count);
+	}
+	
+	void restoreRows(int[] removed, int count) {
+		int k = count;
+		for (int r = 0; r < rows; r++) {
+			if (k > 0 && removed[k-1] == r) {
+				board[r] = filledRow;
+				k--;
+			} else {
+				board[r] = board[r + k];
+			}
+		}
+		rowsRestored(removed, count);
+	}
+	
+	void copyFrom(TetrisBoard other) {
+		System.arraycopy(((TetrisBitBoard) other).board, 0, board, 0, rows);
+		trackingCopied(other);
+	}
+	
+	void reset() {
+		for (int i = 0; i < rows; i++) {
+			board[i] = 0;
+		}
+		trackingReset();
+	}
+	
+}
@@ -0,0 +1,275 @@
+package com.smd.tetris;
+
+import java.util.Arrays;
+
+/**
+ * Cells of the well. As before, the falling block is kept on the board along
+ * with the cells already settled, so callers clear it before probing a move.
+ * <p>
+ * Besides the cells, every board keeps the number of occupied cells per row
+ * and a bit set of occupied rows per column. The engines report each cell
+ * they set or clear, so row fill, column heights and holes are read without
+ * scanning the board.
+ * 
+ * @see TetrisArrayBoard
+ * @see TetrisBitBoard
+ */
+abstract class TetrisBoard {
+	
+	protected final int rows;
+	protected final int cols;
+	
+	// occupied cells per row
+	private final int[] rowFill;
+	// per column, bit (row & 63) of word (row >>> 6) is set when the cell is occupied
+	private final long[][] colBits;
+	private int filledRows = 0;
+	
+	protected TetrisBoard(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+		this.rowFill = new int[rows];
+		this.colBits = new long[cols][(rows + 63) >>> 6];
+	}
+	
+	static TetrisBoard create(int engine, int rows, int cols) {
+		switch (engine) {
+		case TetrisModel.ENGINE_ARRAY:
+			return new TetrisArrayBoard(rows, cols);
+		case TetrisModel.ENGINE_BITBOARD:
+			return new TetrisBitBoard(rows, cols);
+		default:
+			throw new IllegalArgumentException("Unknown board engine: " + engine);
+		}
+	}
+	
+	abstract boolean isOccupied(int row, int col);
+	
+	/**
+	 * Checks whether the shape collides with any occupied cell. The bounding
+	 * box of the shape must already be known to lie inside the well.
+	 */
+	abstract boolean fits(BlockShape shape, int row, int col);
+	
+	abstract void place(BlockShape shape, int row, int col);
+	
+	abstract void clear(BlockShape shape, int row, int col);
+	
+	/**
+	 * Removes <code>count</code> rows in one pass; every other row is moved at
+	 * most once. <code>removed</code> lists the rows bottom up by their index
+	 * before the removal. Each remaining row moves down by the number of removed
+	 * rows below it, and the rows uncovered at the top hold copies of the top
+	 * row, just as if the rows had been removed one by one.
+	 */
+	abstract void removeRows(int[] removed, int count);
+	
+	/**
+	 * Undoes {@link #removeRows(int[], int)} with the same arguments, which
+	 * must be the last change to the board: the rows uncovered at the top
+	 * are dropped, the others move back up and the removed rows, which were
+	 * filled, come back filled.
+	 */
+	abstract void restoreRows(int[] removed, int count);
+	
+	abstract void reset();
+	
+	/**
+	 * Makes this board a copy of <code>other</code>, which must use the same
+	 * engine and dimensions.
+	 */
+	abstract void copyFrom(TetrisBoard other);
+	
+	final boolean isRowFilled(int row) {
+		return rowFill[row] == cols;
+	}
+	
+	final int rowFill(int row) {
+		return rowFill[row];
+	}
+	
+	/**
+	 * @return number of completely filled rows anywhere on the board
+	 */
+	final int filledRows() {
+		return filledRows;
+	}
+	
+	/**
+	 * @return the first occupied row at or below <code>fromRow</code> in the
+	 * column, or <code>rows</code> if there is none
+	 */
+	final int firstOccupied(int col, int fromRow) {
+		long[] bits = colBits[col];
+		int w = fromRow >>> 6;
+		if (w >= bits.length) return rows;
+		long word = bits[w] & (-1L << (fromRow & 63));
+		while (word == 0) {
+			if (++w == bits.length) return rows;
+			word = bits[w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+	
+	/**
+	 * @return number of empty cells below the topmost occupied cell of their column
+	 */
+	final int holes() {
+		int holes = 0;
+		for (int j = 0; j < cols; j++) {
+			int top = firstOccupied(j, 0);
+			int occupied = 0;
+			for (long word : colBits[j]) {
+				occupied += Long.bitCount(word);
+			}
+			holes += rows - top - occupied;
+		}
+		return holes;
+	}
+	
+	/**
+	 * To be called by the engine when an empty cell becomes occupied
+	 */
+	protected final void cellSet(int row, int col) {
+		colBits[col][row >>> 6] |= 1L << row;
+		if (++rowFill[row] == cols) filledRows++;
+	}
+	
+	/**
+	 * To be called by the engine when an occupied cell becomes empty
+	 */
+	protected final void cellCleared(int row, int col) {
+		colBits[col][row >>> 6] &= ~(1L << row);
+		if (rowFill[row]-- == cols) filledRows--;
+	}
+	
+	/**
+	 * To be called by the engine after {@link #removeRows(int[], int)}
+	 */
+	protected final void rowsRemoved(int[] removed, int count) {
+		for (int k = 0; k < count; k++) {
+			if (rowFill[removed[k]] == cols) filledRows--;
+		}
+		compact(rowFill, removed, count);
+		// the uncovered rows repeat the top row
+		if (rowFill[0] == cols) filledRows += count;
+		// one shift per removed row; the k-th row bottom up has moved down k
+		// places by the time it is removed
+		for (long[] bits : colBits) {
+			for (int k = 0; k < count; k++) {
+				removeBit(bits, removed[k] + k);
+			}
+		}
+	}
+	
+	/**
+	 * To be called by the engine after {@link #restoreRows(int[], int)}
+	 */
+	protected final void rowsRestored(int[] removed, int count) {
+		for (int i = 0; i < count; i++) {
+			if (rowFill[i] == cols) filledRows--;
+		}
+		expand(rowFill, removed, count, cols);
+		filledRows += count;
+		for (long[] bits : colBits) {
+			for (int k = count - 1; k >= 0; k--) {
+				insertBit(bits, removed[k] + k);
+			}
+		}
+	}
+	
+	/**
+	 * Single pass removal on a per row array, see {@link #removeRows(int[], int)}
+	 */
+	static void compact(int[] values, int[] removed, int count) {
+		int top = values[0];
+		int k = 0;
+		for (int src = values.length - 1; src >= 0; src--) {
+			if (k < count && removed[k] == src) {
+				k++;
+			} else if (k > 0) {
+				values[src + k] = values[src];
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			values[i] = top;
+		}
+	}
+	
+	/**
+	 * Undoes {@link #compact(int[], int[], int)}: the first <code>count</code>
+	 * values are dropped, the others move back up and the removed rows get
+	 * <code>value</code>
+	 */
+	static void expand(int[] values, int[] removed, int count, int value) {
+		// removed rows are listed bottom up, so the ones above row r are the first k
+		int k = count;
+		for (int r = 0; r < values.length; r++) {
+			if (k > 0 && removed[k-1] == r) {
+				values[r] = value;
+				k--;
+			} else {
+				values[r] = values[r + k];
+			}
+		}
+	}
+	
+	/**
+	 * Bit <code>row</code> is dropped and the bits below it, i.e. the rows
+	 * above, move up one place. Bit 0 keeps its value, like the top row.
+	 */
+	private static void removeBit(long[] bits, int row) {
+		int w = row >>> 6;
+		int b = row & 63;
+		long word = bits[w];
+		// bits after the removed one stay, the ones before it move up
+		long keep = b == 63 ? 0 : word & (-1L << (b + 1));
+		long low = b == 0 ? 0 : word & (-1L >>> (64 - b));
+		long carry = w > 0 ? bits[w-1] >>> 63 : word & 1;
+		bits[w] = keep | (low << 1) | carry;
+		for (int i = w - 1; i >= 0; i--) {
+			word = bits[i];
+			carry = i > 0 ? bits[i-1] >>> 63 : word & 1;
+			bits[i] = (word << 1) | carry;
+		}
+	}
+	
+	/**
+	 * Undoes {@link #removeBit(long[], int)}: the bits below <code>row</code>
+	 * move down one place, dropping bit 0, and bit <code>row</code> is set
+	 */
+	private static void insertBit(long[] bits, int row) {
+		int w = row >>> 6;
+		int b = row & 63;
+		for (int i = 0; i < w; i++) {
+			bits[i] = (bits[i] >>> 1) | (bits[i+1] << 63);
+		}
+		long word = bits[w];
+		long keep = b == 63 ? 0 : word & (-1L << (b + 1));
+		long low = b == 0 ? 0 : (word >>> 1) & (-1L >>> (64 - b));
+		bits[w] = keep | (1L << b) | low;
+	}
+	
+	/**
+	 * To be called by the engine after {@link #reset()}
+	 */
+	protected final void trackingReset() {
+		Arrays.fill(rowFill, 0);
+		for (long[] bits : colBits) {
+			Arrays.fill(bits, 0);
+		}
+		filledRows = 0;
+	}
+	
+	/**
+	 * To be called by the engine after {@link #copyFrom(TetrisBoard)}
+	 */
+	protected final void trackingCopied(TetrisBoard other) {
+		System.arraycopy(other.rowFill, 0, rowFill, 0, rows);
+		for (int j = 0; j < cols; j++) {
+			System.arraycopy(other.colBits[j], 0, colBits[j], 0, colBits[j].length);
+		}
+		filledRows = other.filledRows;
+	}
+	
+}
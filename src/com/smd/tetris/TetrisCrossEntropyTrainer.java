@@ -0,0 +1,344 @@
+package com.smd.tetris;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fits {@link TetrisApproxQLearner} weights with the cross-entropy method
+ * instead of temporal differences. Every generation samples a population of
+ * weight vectors from an independent Gaussian per feature, scores each by
+ * the rows it clears playing greedily in placement mode, and refits mean and
+ * variance to the best of them, the elite. Extra noise added to the variance
+ * keeps the distribution from collapsing too early and fades out over the
+ * first generations.
+ * <p>
+ * All candidates of a generation play the same seeded games, which are
+ * spread over a {@link ForkJoinPool} one game per task; each pool thread
+ * keeps its own model and learner. Results therefore do not depend on the
+ * number of threads. The mean is the weight vector to load into the learner.
+ */
+public class TetrisCrossEntropyTrainer {
+
+	public static final int DEFAULT_POPULATION = 100;
+	public static final int DEFAULT_ELITE = 10;
+	public static final int DEFAULT_GAMES = 4;
+	public static final double DEFAULT_STDEV = 10;
+	/** Variance added in the first generation */
+	public static final double DEFAULT_NOISE = 5;
+	/** Decrease of the added variance per generation */
+	public static final double DEFAULT_NOISE_DECAY = 0.1;
+
+	private final int rows;
+	private final int cols;
+	private final int allowableDepth;
+	private final int[] allowedActions;
+	private final int engine;
+	private final int population;
+	private final int elite;
+	private final int games;
+	private final int maxBlocks;
+	private final int startCol;
+	private double noise = DEFAULT_NOISE;
+	private double noiseDecay = DEFAULT_NOISE_DECAY;
+
+	private final ForkJoinPool pool;
+	private final ThreadLocal<Evaluator> evaluators;
+
+	private final double[] mean;
+	private final double[] variance;
+	private final double[][] candidates;
+	private final long[] gameSeeds;
+	// rows cleared and blocks placed by candidate i in game g at i * games + g
+	private final int[] scores;
+	private final int[] gameBlocks;
+	private final double[] fitness;
+	private final Integer[] ranking;
+	private SplittableRandom seeds = new SplittableRandom();
+	private int generation = 0;
+
+	private double meanFitness;
+	private double eliteFitness;
+	private double bestFitness;
+	private final double[] best;
+	private double bestEver = Double.NEGATIVE_INFINITY;
+	private long blocks = 0;
+	private long gamesPlayed = 0;
+
+	public TetrisCrossEntropyTrainer(int rows, int cols, int allowableDepth, int[] allowedActions, int engine,
+			int threads, int maxBlocks) {
+		this(rows, cols, allowableDepth, allowedActions, engine, threads, DEFAULT_POPULATION, DEFAULT_ELITE,
+				DEFAULT_GAMES, maxBlocks);
+	}
+
+	/**
+	 * @param population weight vectors sampled per generation
+	 * @param elite number of best candidates the distribution is refitted to
+	 * @param games seeded games each candidate plays per generation
+	 * @param maxBlocks blocks after which a game ends, which must be set as
+	 * good weights play on for a long time
+	 */
+	public TetrisCrossEntropyTrainer(int rows, int cols, int allowableDepth, int[] allowedActions, int engine,
+			int threads, int population, int elite, int games, int maxBlocks) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		if (elite < 1 || elite > population)
+			throw new IllegalArgumentException("Elite must be between 1 and the population of " + population + ": " + elite);
+		if (games < 1)
+			throw new IllegalArgumentException("Each candidate needs at least one game");
+		if (maxBlocks < 1)
+			throw new IllegalArgumentException("Games need a block limit");
+		this.rows = rows;
+		this.cols = cols;
+		this.allowableDepth = allowableDepth;
+		this.allowedActions = allowedActions;
+		this.engine = engine;
+		this.population = population;
+		this.elite = elite;
+		this.games = games;
+		this.maxBlocks = maxBlocks;
+		this.startCol = cols / 2 - 2;
+		this.pool = new ForkJoinPool(threads);
+		this.evaluators = new ThreadLocal<Evaluator>() {
+			protected Evaluator initialValue() {
+				return new Evaluator();
+			}
+		};
+		int numFeatures = new StateCodec(rows, cols).numFeatures;
+		this.mean = new double[numFeatures];
+		this.variance = new double[numFeatures];
+		Arrays.fill(variance, DEFAULT_STDEV * DEFAULT_STDEV);
+		this.best = new double[numFeatures];
+		this.candidates = new double[population][numFeatures];
+		this.gameSeeds = new long[games];
+		this.scores = new int[population * games];
+		this.gameBlocks = new int[population * games];
+		this.fitness = new double[population];
+		this.ranking = new Integer[population];
+	}
+
+	/**
+	 * Makes sampling and the games played repeatable
+	 */
+	public void setSeed(long seed) {
+		this.seeds = new SplittableRandom(seed);
+	}
+
+	/**
+	 * Sets the extra variance of the first generation and how much less of
+	 * it each following generation gets
+	 */
+	public void setNoise(double noise, double decayPerGeneration) {
+		if (noise < 0 || decayPerGeneration < 0)
+			throw new IllegalArgumentException("Noise must not be negative");
+		this.noise = noise;
+		this.noiseDecay = decayPerGeneration;
+	}
+
+	/**
+	 * Starts the search around <code>weights</code>, e.g. a loaded checkpoint
+	 */
+	public void setMean(double[] weights) {
+		if (weights.length != mean.length)
+			throw new IllegalArgumentException("Expected " + mean.length + " weights, got " + weights.length);
+		System.arraycopy(weights, 0, mean, 0, mean.length);
+	}
+
+	/**
+	 * Samples, plays and refits one generation, blocking until every game
+	 * is over
+	 */
+	public void nextGeneration() {
+		Random sampler = new Random(seeds.nextLong());
+		for (double[] candidate : candidates) {
+			for (int j = 0; j < candidate.length; j++) {
+				candidate[j] = mean[j] + Math.sqrt(variance[j]) * sampler.nextGaussian();
+			}
+		}
+		for (int g = 0; g < games; g++) {
+			gameSeeds[g] = seeds.nextLong();
+		}
+		pool.invoke(new Games(0, population * games));
+
+		for (int i = 0; i < population; i++) {
+			long sum = 0;
+			for (int g = 0; g < games; g++) {
+				sum += scores[i * games + g];
+				blocks += gameBlocks[i * games + g];
+			}
+			fitness[i] = (double)sum / games;
+			ranking[i] = i;
+		}
+		Arrays.sort(ranking, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(fitness[b], fitness[a]);
+			}
+		});
+		refit();
+
+		double total = 0;
+		for (double f : fitness) {
+			total += f;
+		}
+		meanFitness = total / population;
+		bestFitness = fitness[ranking[0]];
+		if (bestFitness > bestEver) {
+			bestEver = bestFitness;
+			System.arraycopy(candidates[ranking[0]], 0, best, 0, best.length);
+		}
+		gamesPlayed += population * games;
+		generation++;
+	}
+
+	private void refit() {
+		double extra = Math.max(noise - noiseDecay * generation, 0);
+		for (int j = 0; j < mean.length; j++) {
+			double sum = 0;
+			for (int k = 0; k < elite; k++) {
+				sum += candidates[ranking[k]][j];
+			}
+			double m = sum / elite;
+			double squares = 0;
+			for (int k = 0; k < elite; k++) {
+				double d = candidates[ranking[k]][j] - m;
+				squares += d * d;
+			}
+			mean[j] = m;
+			variance[j] = squares / elite + extra;
+		}
+		double total = 0;
+		for (int k = 0; k < elite; k++) {
+			total += fitness[ranking[k]];
+		}
+		eliteFitness = total / elite;
+	}
+
+	/**
+	 * Plays games <code>from</code> to <code>to</code> of the generation,
+	 * splitting down to one game per task
+	 */
+	private class Games extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		Games(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from == 1) {
+				evaluators.get().play(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Games(from, mid), new Games(mid, to));
+		}
+	}
+
+	/**
+	 * A model and a greedy learner reading the weights it is given, one per
+	 * pool thread
+	 */
+	private class Evaluator {
+
+		private final TetrisModel tetris;
+		private final double[] weights;
+		private final TetrisApproxQLearner learner;
+		private final Placement[] placements;
+
+		Evaluator() {
+			this.tetris = new TetrisModel(rows, cols, allowableDepth, allowedActions, true, engine);
+			this.weights = new double[tetris.numFeatures];
+			this.learner = new TetrisApproxQLearner(tetris, allowedActions, weights);
+			learner.debugOff();
+			learner.stopTrainingQuietly();
+			this.placements = new Placement[tetris.getMaxPlacements()];
+		}
+
+		/**
+		 * Plays game <code>i</code> of the generation and records its score
+		 */
+		void play(int i) {
+			System.arraycopy(candidates[i / games], 0, weights, 0, weights.length);
+			tetris.setSeed(gameSeeds[i % games]);
+			learner.resetCounts();
+			TetrisRunner.playPlacementEpoch(tetris, learner, placements, startCol, maxBlocks);
+			scores[i] = learner.getRowsCompressed();
+			gameBlocks[i] = learner.getBlocksAccommodated();
+		}
+	}
+
+	/**
+	 * Stops the pool threads; the trainer cannot be used afterwards
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * @return mean of the current distribution, the weights to load into
+	 * {@link TetrisApproxQLearner}
+	 */
+	public double[] getWeights() {
+		return mean;
+	}
+
+	/**
+	 * @return the single best candidate of all generations
+	 */
+	public double[] getBestWeights() {
+		return best;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return average rows per game over the last generation
+	 */
+	public double getMeanFitness() {
+		return meanFitness;
+	}
+
+	/**
+	 * @return average rows per game of the elite of the last generation
+	 */
+	public double getEliteFitness() {
+		return eliteFitness;
+	}
+
+	/**
+	 * @return average rows per game of the best candidate of the last generation
+	 */
+	public double getBestFitness() {
+		return bestFitness;
+	}
+
+	/**
+	 * @return mean standard deviation over all weights
+	 */
+	public double getMeanStdev() {
+		double sum = 0;
+		for (double v : variance) {
+			sum += Math.sqrt(v);
+		}
+		return sum / variance.length;
+	}
+
+	public long getBlocks() {
+		return blocks;
+	}
+
+	public long getGamesPlayed() {
+		return gamesPlayed;
+	}
+
+}
@@ -0,0 +1,233 @@
+package com.smd.tetris;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Plays a fixed policy on a set of seeded games in parallel and collects
+ * per game results. Games are fork/join tasks on a work-stealing pool; each
+ * pool thread gets its own model and planner from the factory, and the model
+ * is reseeded before every game. As long as the planner does not learn and
+ * keeps nothing from one game to the next, the results for a seed set are
+ * the same whatever the number of threads.
+ */
+public class TetrisEvaluation {
+
+	private final int rows;
+	private final int cols;
+	private final int allowableDepth;
+	private final int[] allowedActions;
+	private final int engine;
+	private final int threads;
+	private final int maxBlocks;
+	private final boolean placementMode;
+	private final int startCol;
+
+	/**
+	 * @param maxBlocks blocks after which a game ends, 0 for no limit
+	 * @param placementMode ask the planner, then a {@link PlacementPlanner},
+	 * for a placement per block instead of a move per time step
+	 */
+	public TetrisEvaluation(int rows, int cols, int allowableDepth, int[] allowedActions, int engine,
+			int threads, int maxBlocks, boolean placementMode) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.rows = rows;
+		this.cols = cols;
+		this.allowableDepth = allowableDepth;
+		this.allowedActions = allowedActions;
+		this.engine = engine;
+		this.threads = threads;
+		this.maxBlocks = maxBlocks;
+		this.placementMode = placementMode;
+		this.startCol = cols / 2 - 2;
+	}
+
+	/**
+	 * @return <code>games</code> game seeds drawn from <code>seed</code>
+	 */
+	public static long[] seeds(long seed, int games) {
+		SplittableRandom random = new SplittableRandom(seed);
+		long[] seeds = new long[games];
+		for (int g = 0; g < games; g++) {
+			seeds[g] = random.nextLong();
+		}
+		return seeds;
+	}
+
+	/**
+	 * @return factory of greedy approx learners reading <code>weights</code>,
+	 * which must not change during an evaluation
+	 */
+	public static PlannerFactory frozen(final int[] allowedActions, final double[] weights) {
+		return new PlannerFactory() {
+			public Planner create(TetrisModel model) {
+				TetrisApproxQLearner learner = new TetrisApproxQLearner(model, allowedActions, weights);
+				learner.stopTrainingQuietly();
+				return learner;
+			}
+		};
+	}
+
+	public Result evaluate(PlannerFactory factory, long seed, int games) {
+		return evaluate(factory, seeds(seed, games));
+	}
+
+	/**
+	 * Plays one game per seed, blocking until all are over
+	 */
+	public Result evaluate(final PlannerFactory factory, long[] seeds) {
+		final ThreadLocal<Player> players = new ThreadLocal<Player>() {
+			protected Player initialValue() {
+				return new Player(factory);
+			}
+		};
+		Result result = new Result(seeds);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		try {
+			if (seeds.length > 0)
+				pool.invoke(new Games(players, result, 0, seeds.length));
+		} finally {
+			pool.shutdown();
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		for (long nanos : result.cpu) {
+			result.cpuNanos += nanos;
+		}
+		return result;
+	}
+
+	/**
+	 * Plays games <code>from</code> to <code>to</code>, splitting down to one
+	 * game per task
+	 */
+	private static class Games extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ThreadLocal<Player> players;
+		private final Result result;
+		private final int from;
+		private final int to;
+
+		Games(ThreadLocal<Player> players, Result result, int from, int to) {
+			this.players = players;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from == 1) {
+				players.get().play(result, from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Games(players, result, from, mid), new Games(players, result, mid, to));
+		}
+	}
+
+	private class Player {
+
+		private final TetrisModel tetris;
+		private final Planner planner;
+		private final Placement[] placements;
+		private final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+		Player(PlannerFactory factory) {
+			this.tetris = new TetrisModel(rows, cols, allowableDepth, allowedActions, true, engine);
+			this.planner = factory.create(tetris);
+			if (placementMode && !(planner instanceof PlacementPlanner))
+				throw new IllegalArgumentException(planner.getClass().getSimpleName() + " cannot choose placements");
+			planner.debugOff();
+			this.placements = new Placement[tetris.getMaxPlacements()];
+		}
+
+		void play(Result result, int game) {
+			long start = cpu.getCurrentThreadCpuTime();
+			tetris.setSeed(result.seeds[game]);
+			planner.resetCounts();
+			if (placementMode)
+				TetrisRunner.playPlacementEpoch(tetris, (PlacementPlanner)planner, placements, startCol, maxBlocks);
+			else
+				TetrisRunner.playEpoch(tetris, planner, startCol, maxBlocks);
+			result.rows[game] = planner.getRowsCompressed();
+			result.blocks[game] = planner.getBlocksAccommodated();
+			result.cpu[game] = cpu.getCurrentThreadCpuTime() - start;
+		}
+	}
+
+	/**
+	 * Rows cleared and blocks placed in each game, in the order of the seeds
+	 */
+	public static final class Result {
+
+		public final long[] seeds;
+		public final int[] rows;
+		public final int[] blocks;
+		private final long[] cpu;
+		private long elapsedNanos;
+		private long cpuNanos;
+
+		Result(long[] seeds) {
+			this.seeds = seeds.clone();
+			this.rows = new int[seeds.length];
+			this.blocks = new int[seeds.length];
+			this.cpu = new long[seeds.length];
+		}
+
+		public int games() {
+			return seeds.length;
+		}
+
+		public static double mean(int[] values) {
+			long sum = 0;
+			for (int v : values) {
+				sum += v;
+			}
+			return values.length == 0 ? 0 : (double)sum / values.length;
+		}
+
+		/**
+		 * @return the <code>p</code> quantile of <code>values</code> by the
+		 * nearest rank method
+		 */
+		public static int percentile(int[] values, double p) {
+			if (values.length == 0) return 0;
+			int[] sorted = values.clone();
+			Arrays.sort(sorted);
+			int rank = (int)Math.ceil(p * sorted.length);
+			return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return CPU time of the games summed over all threads, 0 when the
+		 * JVM does not measure it
+		 */
+		public long getCpuNanos() {
+			return cpuNanos;
+		}
+
+		public double gamesPerSecond() {
+			return games() / (Math.max(elapsedNanos, 1) / 1e9);
+		}
+
+		public String toString() {
+			return String.format("Games: %d, rows mean %.1f, median %d, p5 %d, p95 %d; blocks mean %.1f, median %d,"
+					+ " p5 %d, p95 %d%nElapsed: %.3f s, %.1f games/sec, CPU %.3f s",
+					games(), mean(rows), percentile(rows, 0.5), percentile(rows, 0.05), percentile(rows, 0.95),
+					mean(blocks), percentile(blocks, 0.5), percentile(blocks, 0.05), percentile(blocks, 0.95),
+					elapsedNanos / 1e9, gamesPerSecond(), getCpuNanos() / 1e9);
+		}
+	}
+
+}
@@ -1,7 +1,28 @@
 package com.smd.tetris;
 
+/**
+ * Receives the events of a {@link TetrisModel}. A listener registered with
+ * {@link TetrisModel#addListener(TetrisListener, int)} is only called for
+ * the events in its mask, the others may be left empty.
+ */
 public interface TetrisListener {
 	
+	/** {@link #setBlock(Block, int, int)} */
+	int BLOCK_SET = 1;
+	/** {@link #clearBlock(Block, int, int)} */
+	int BLOCK_CLEARED = 1 << 1;
+	/** {@link #startRound()} */
+	int ROUND_STARTED = 1 << 2;
+	/** {@link #beforeAction(int)} */
+	int BEFORE_ACTION = 1 << 3;
+	/** {@link #afterAction(int, boolean)} */
+	int AFTER_ACTION = 1 << 4;
+	/** {@link #compressed(int[])} */
+	int COMPRESSED = 1 << 5;
+	/** {@link #reset()} */
+	int RESET = 1 << 6;
+	int ALL_EVENTS = (1 << 7) - 1;
+	
 	void setBlock(Block block, int row, int col);
 	void clearBlock(Block block, int row, int col);
 	
@@ -10,7 +31,11 @@ public interface TetrisListener {
 	void boardFull();
 	void beforeAction(int action);
 	void afterAction(int action, boolean success);
-	void compressed(int row);
+	/**
+	 * Completed rows were removed in one go; <code>rows</code> holds their
+	 * indices before the removal, bottom up
+	 */
+	void compressed(int[] rows);
 	
 	void reset();
 	
@@ -1,8 +1,7 @@
 package com.smd.tetris;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 public class TetrisModel {
 	
@@ -14,9 +13,19 @@ public class TetrisModel {
 	public static final int ROT_COUNTER_CLOCK = 4;
 	public static final int DROP = 5;
 	public static final int MOVE_DOWN = 6;
+	/** Moves the block to a {@link Placement} in one step, see {@link #place(Placement)} */
+	public static final int PLACE = 7;
 	
 	public static final int NUM_ACTIONS_ALLOWED = 6;
 	
+	/** Board backed by an int per cell */
+	public static final int ENGINE_ARRAY = 0;
+	/** Board backed by a bit mask per row */
+	public static final int ENGINE_BITBOARD = 1;
+	
+	// turns tried by getPlacements, the half turn last as it needs a quarter turn first
+	private static final int[] PLACEMENT_ROTATIONS = { 0, 1, -1, 2 };
+	
 	private boolean debug = false;
 	
 	protected final int rows;
@@ -24,7 +33,14 @@ public class TetrisModel {
 	protected final int allowableDepth;
 	protected final int verticalLimit;
 	
-	private final Random random = new Random();
+	// pieces and moves come from separate streams, so the pieces of a seeded
+	// game do not depend on the moves the planner makes
+	private final SplitMix pieceRandom = new SplitMix(0);
+	private final SplitMix random = new SplitMix(0);
+	private final SplitMix seedRandom = new SplitMix(0);
+	// one block per type for states copied from elsewhere, see ownBlock
+	private final Block[] ownBlocks = new Block[Block.BLOCK_TEMPLATES.length];
+	private PieceSequence pieces = null;
 	
 	// Current game state
 	protected Block block;
@@ -34,32 +50,103 @@ public class TetrisModel {
 	private int col;
 	private State currentState = null;
 	
-	private final int[][] board;
+	private final int engine;
+	private final TetrisBoard board;
+	// board without the current block, used for look-ahead
+	private final TetrisBoard lookAheadBoard;
+	private boolean lookAheadValid = false;
+	// while searchValid, the look-ahead board holds the current block
+	// settled at (searchShape, searchRow, searchCol) with the searchCount
+	// rows in searchRemoved removed, the root for placing the next block
+	private final int[] searchRemoved;
+	private int searchCount;
+	private boolean searchValid = false;
+	private BlockShape searchShape;
+	private int searchRow, searchCol;
+	// next block type drawn from the piece stream by previewBlock(), or -1
+	private int preview = -1;
+	private final int[] removedRows;
+	// block type of each settled cell, row by row, for snapshots. The current
+	// block is added once it has settled: on the next block or a compression.
+	private final byte[] cellTypes;
+	private boolean blockSettled = true;
 	private final double[][] rewards;
 	public final int numFeatures;
 	
-	protected final StateSpace stateSpace = new StateSpace();
+	private final StateCodec codec;
+	// scratch buffers for building the packed state
+	private final int[] raw;
+	private final long[] key = new long[2];
+	private final LookAhead evaluation;
+	
+	protected final StateSpace stateSpace;
 	private final int[] allowedActions;
 	
 	private final boolean stateless;
 	
-	private List<TetrisListener> listeners = new ArrayList<TetrisListener>();
+	private Metrics metrics = null;
+	
+	// one dispatch list per event, holding only the listeners that asked for it
+	private static final TetrisListener[] NO_LISTENERS = new TetrisListener[0];
+	private TetrisListener[] setBlockListeners = NO_LISTENERS;
+	private TetrisListener[] clearBlockListeners = NO_LISTENERS;
+	private TetrisListener[] startListeners = NO_LISTENERS;
+	private TetrisListener[] beforeActionListeners = NO_LISTENERS;
+	private TetrisListener[] afterActionListeners = NO_LISTENERS;
+	private TetrisListener[] compressedListeners = NO_LISTENERS;
+	private TetrisListener[] resetListeners = NO_LISTENERS;
 	
 	public TetrisModel(int rows, int cols, int allowableDepth, int[] allowedActions) {
 		this(rows, cols, allowableDepth, allowedActions, false);
 	}
 	public TetrisModel(int rows, int cols, int allowableDepth, int[] allowedActions, boolean stateless) {
+		this(rows, cols, allowableDepth, allowedActions, stateless, ENGINE_ARRAY);
+	}
+	/**
+	 * @param engine board storage, {@link #ENGINE_ARRAY} or {@link #ENGINE_BITBOARD}.
+	 * Both engines play identical games.
+	 */
+	public TetrisModel(int rows, int cols, int allowableDepth, int[] allowedActions, boolean stateless, int engine) {
+		this(rows, cols, allowableDepth, allowedActions, stateless, engine, null);
+	}
+	/**
+	 * Model recording its states in <code>stateSpace</code>, which may be shared
+	 * with other models of the same size, e.g. a {@link ConcurrentStateSpace}
+	 * used by models on different threads. A private one is created if it is
+	 * <code>null</code>.
+	 */
+	public TetrisModel(int rows, int cols, int allowableDepth, int[] allowedActions, int engine, StateSpace stateSpace) {
+		this(rows, cols, allowableDepth, allowedActions, false, engine, stateSpace);
+	}
+	private TetrisModel(int rows, int cols, int allowableDepth, int[] allowedActions, boolean stateless, int engine,
+			StateSpace stateSpace) {
 		this.rows = rows;
 		this.cols = cols;
 		this.allowableDepth = allowableDepth;
 		this.verticalLimit = rows - allowableDepth;
-		this.board = new int[rows][cols];
+		this.engine = engine;
+		this.board = TetrisBoard.create(engine, rows, cols);
+		this.lookAheadBoard = TetrisBoard.create(engine, rows, cols);
+		this.searchRemoved = new int[rows];
+		this.removedRows = new int[rows];
+		this.cellTypes = new byte[rows * cols];
+		Arrays.fill(cellTypes, (byte)BoardSnapshot.EMPTY);
 		this.rewards = new double[rows][cols];
 		this.allowedActions = allowedActions;
 		this.stateless = stateless;
+		seed(new SplittableRandom().nextLong());
 		
 		// #features = 2 (row,col) + width + #block types + #orientations
-		this.numFeatures = getFeatureCount();
+		this.codec = new StateCodec(rows, cols);
+		this.numFeatures = codec.numFeatures;
+		this.raw = new int[codec.rawLength()];
+		if (stateSpace == null) {
+			stateSpace = new StateSpace(codec);
+		} else if (!stateSpace.accepts(codec)) {
+			throw new IllegalArgumentException("State space was created for a different board size");
+		}
+		this.stateSpace = stateSpace;
+		this.evaluation = new LookAhead(this);
 		
 		for (int i = verticalLimit; i < rewards.length; i++) {
 			for (int j = 0; j < rewards[i].length; j++) {
@@ -70,8 +157,46 @@ public class TetrisModel {
 		}
 	}
 
-	private int getFeatureCount() {
-		return board[0].length*2 - 1 + 2 + Block.BLOCK_TEMPLATES.length + 4 + 1; // last 1 is bias
+	/**
+	 * @return layout of the states and features of this model, e.g. to
+	 * check a {@link Checkpoint} against
+	 */
+	public StateCodec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Starts recording actions, state space lookups and the time spent in
+	 * {@link #getState()} and look-ahead into <code>metrics</code>, or stops
+	 * recording when <code>null</code>
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return row of the current block's matrix
+	 */
+	public int getRow() {
+		return row;
+	}
+	
+	/**
+	 * @return column of the current block's matrix, as in {@link Placement#col}
+	 */
+	public int getCol() {
+		return col;
+	}
+	
+	/**
+	 * @return length of the vector returned by {@link #getFeatures()}
+	 */
+	public int getFeatureLength() {
+		return codec.featureLength;
 	}
 	
 	public double[][] getRewards() {
@@ -88,21 +213,22 @@ public class TetrisModel {
 		block = null;
 		row = 0;
 		col = 0;
-		for (int i = 0; i < board.length; i++) {
-			for (int j = 0; j < board[i].length; j++) {
-				board[i][j] = 0;
-			}
-		}
+		board.reset();
+		Arrays.fill(cellTypes, (byte)BoardSnapshot.EMPTY);
+		blockSettled = true;
+		lookAheadValid = false;
 		triggerReset();
 	}
 	
 	public void newBlock(Block block, int row, int col) {
 		if (full)
 			throw new RuntimeException("Board is full");
+		settleBlock();
 		this.atBottom = false;
 		this.block = block;
 		this.row = row;
 		this.col = col;
+		this.blockSettled = false;
 		setBlock(block, row, col);
 		triggerStart();
 	}
@@ -151,31 +277,70 @@ public class TetrisModel {
 		return true;
 	}
 	
+	/**
+	 * Moves the current block straight to {@link #getLandingRow()}, with one
+	 * clearBlock and one setBlock event
+	 */
 	public boolean drop() {
-		int rowsDropped = 0;
-		while (isAllowed(1, 0, 0)) {
+		int landing = getLandingRow();
+		boolean dropped = landing > row;
+		if (dropped) {
 			clearBlock(block, row, col);
-			rowsDropped++;
-			row++;
+			row = landing;
 			setBlock(block, row, col);
 		}
 		atBottom = true;
 		checkFull();
-		return rowsDropped > 0;
+		return dropped;
+	}
+	
+	/**
+	 * @return the row the current block would come to rest at if dropped,
+	 * the "ghost" of the block. Found from the heights of the stack under
+	 * the block's lowest cells, without moving it.
+	 */
+	public int getLandingRow() {
+		BlockShape shape = block.shape();
+		if (shape.solidColumns)
+			return landingRow(board, shape, row, col);
+		// a cell of the block may hide below a gap in its own column, so
+		// take the block off the board and fall step by step
+		clearModel(block, row, col);
+		int landing = row;
+		while (landing+1+shape.botRghtR < rows && board.fits(shape, landing+1, col))
+			landing++;
+		placeModel(block, row, col);
+		return landing;
+	}
+	
+	/**
+	 * Lowest row the shape reaches falling from (row, col) on <code>b</code>,
+	 * where it must fit. The shape itself may only be on <code>b</code> when
+	 * its columns are {@link BlockShape#solidColumns solid}.
+	 */
+	private int landingRow(TetrisBoard b, BlockShape shape, int row, int col) {
+		int fall = rows;
+		int[] edgeRows = shape.edgeRows, edgeCols = shape.edgeCols;
+		for (int e = 0; e < edgeRows.length; e++) {
+			int below = row + edgeRows[e] + 1;
+			int free = b.firstOccupied(col + edgeCols[e], below) - below;
+			if (free < fall) fall = free;
+		}
+		return row + fall;
 	}
 	
 	private void setBlock(Block block, int row, int col) {
 		placeModel(block, row, col);
-		if (listeners != null)
-			for (TetrisListener listener : listeners)
-				listener.setBlock(block, row, col);
+		lookAheadValid = false;
+		for (TetrisListener listener : setBlockListeners)
+			listener.setBlock(block, row, col);
 	}
 	
 	private void clearBlock(Block block, int row, int col) {
 		clearModel(block, row, col);
-		if (listeners != null)
-			for (TetrisListener listener : listeners)
-				listener.clearBlock(block, row, col);
+		lookAheadValid = false;
+		for (TetrisListener listener : clearBlockListeners)
+			listener.clearBlock(block, row, col);
 	}
 	
 	/**
@@ -189,13 +354,14 @@ public class TetrisModel {
 	 */
 	public boolean reachedLowestPossible() {
 		if (atBottom) return true;
-		int[][] blockMat = block.blockMat;
-		for (int i = block.topLeftR; i <= block.botRghtR; i++) {
-			if (row+i+1 >= board.length) return true;
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-				if (blockMat[i][j] > 0 && i == block.botRghtR && (board[row+i+1][col+j] > 0))
+		BlockShape shape = block.shape();
+		int[][] blockMat = shape.blockMat;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			if (row+i+1 >= rows) return true;
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (blockMat[i][j] > 0 && i == shape.botRghtR && board.isOccupied(row+i+1, col+j))
 					atBottom = true;
-				else if (i < block.botRghtR && blockMat[i][j] > 0 && blockMat[i+1][j] == 0 && (board[row+i+1][col+j] > 0)) {
+				else if (i < shape.botRghtR && blockMat[i][j] > 0 && blockMat[i+1][j] == 0 && board.isOccupied(row+i+1, col+j)) {
 					atBottom = true;
 				}
 			}
@@ -209,12 +375,12 @@ public class TetrisModel {
 	 * @return
 	 */
 	public boolean atWellBottom() {
-		return (row + block.botRghtR == board.length - 1);
+		return (row + block.shape().botRghtR == rows - 1);
 	}
 	
 	private boolean checkFull() {
 		if (atBottom) {
-			if (row + block.topLeftR <= verticalLimit) {
+			if (row + block.shape().topLeftR <= verticalLimit) {
 				this.full = true;
 			}
 		}
@@ -229,7 +395,7 @@ public class TetrisModel {
 	public State getFutureStateIfAllowed(int action) {
 		State state = null;
 		int rowMove = 0;
-		int maxRowMove = action == MOVE_DOWN ? 1 : action == DROP ? board.length-1 : 0;
+		int maxRowMove = action == MOVE_DOWN ? 1 : action == DROP ? rows-1 : 0;
 		int colMove = (action == MOVE_LEFT ? -1 : action == MOVE_RIGHT ? 1 : 0);
 		int rot = (action == ROT_CLOCK ? 1 : action == ROT_COUNTER_CLOCK ? -1 : 0);
 		
@@ -245,19 +411,20 @@ public class TetrisModel {
 		
 		clearModel(block, row, col);
 		rotate(block, rot);
+		BlockShape shape = block.shape();
 		
 		//row++; // next time step
 		
 		boolean allowed = true;
 		while (allowed && rowMove <= maxRowMove) {
 			if (rowMove < maxRowMove) rowMove++;
-			if (col+colMove+block.topLeftC < 0 || col+colMove+block.botRghtC >= board[0].length) {
+			if (col+colMove+shape.topLeftC < 0 || col+colMove+shape.botRghtC >= cols) {
 				allowed = false;
-			} else if (row+rowMove+block.botRghtR >= board.length) {
+			} else if (row+rowMove+shape.botRghtR >= rows) {
 				rowMove--;
 				allowed = false;
 			}else {
-				allowed = check(block, row+rowMove, col+colMove);
+				allowed = board.fits(shape, row+rowMove, col+colMove);
 				if (!allowed && rowMove > 0) rowMove--;
 			}
 			if (rowMove == 0) break;
@@ -282,6 +449,312 @@ public class TetrisModel {
 		return state;
 	}
 
+	/**
+	 * One step look-ahead like {@link #getFutureStateIfAllowed(int)}, but the
+	 * future state is written into <code>out</code> and neither the board nor
+	 * the block are touched, so no listener hears of it. The state space is
+	 * not consulted.
+	 * 
+	 * @return <code>false</code> if the action is not allowed, in which case
+	 * <code>out</code> is left as it was
+	 */
+	public boolean lookAhead(int action, LookAhead out) {
+		int rowMove = 0;
+		int maxRowMove = action == MOVE_DOWN ? 1 : action == DROP ? rows-1 : 0;
+		int colMove = (action == MOVE_LEFT ? -1 : action == MOVE_RIGHT ? 1 : 0);
+		int rot = (action == ROT_CLOCK ? 1 : action == ROT_COUNTER_CLOCK ? -1 : 0);
+		
+		TetrisBoard b = lookAheadBoard();
+		BlockShape shape = block.shape(rot);
+		
+		boolean allowed = true;
+		while (allowed && rowMove <= maxRowMove) {
+			if (rowMove < maxRowMove) rowMove++;
+			if (col+colMove+shape.topLeftC < 0 || col+colMove+shape.botRghtC >= cols) {
+				allowed = false;
+			} else if (row+rowMove+shape.botRghtR >= rows) {
+				rowMove--;
+				allowed = false;
+			}else {
+				allowed = b.fits(shape, row+rowMove, col+colMove);
+				if (!allowed && rowMove > 0) rowMove--;
+			}
+			if (rowMove == 0) break;
+		}
+		if (rowMove <= 0 && !allowed) return false;
+		
+		int r = row+rowMove, c = col+colMove;
+		lookAhead(b, shape, r, c, out);
+		return true;
+	}
+	
+	/**
+	 * Evaluates the state after the current block came to rest at
+	 * <code>placement</code>, like {@link #lookAhead(int, LookAhead)}
+	 */
+	public void lookAhead(Placement placement, LookAhead out) {
+		checkPlacement(placement);
+		lookAhead(lookAheadBoard(), placement.shape, placement.row, placement.col, out);
+	}
+	
+	/**
+	 * Evaluates the state after the current block came to rest at
+	 * <code>after</code>, the rows it completed were removed and the next
+	 * block came to rest at <code>next</code>, one of the placements from
+	 * {@link #getPlacements(Placement, int, int, int, Placement[])}
+	 */
+	public void lookAhead(Placement after, Placement next, LookAhead out) {
+		TetrisBoard b = searchBoard(after);
+		if (next.shape == null || !fitsAt(b, next.shape, next.row, next.col))
+			throw new IllegalArgumentException("Not a placement of the next block: " + next);
+		lookAhead(b, next.shape, next.row, next.col, out);
+	}
+	
+	/**
+	 * @return the look-ahead board with the current block at <code>after</code>
+	 * and completed rows removed. The block and the removal are undone
+	 * again when another placement or the look-ahead board itself is asked
+	 * for, so the board is never copied; evaluating the next block places
+	 * and clears only that block, so all of its placements share one setup.
+	 */
+	private TetrisBoard searchBoard(Placement after) {
+		checkPlacement(after);
+		if (lookAheadValid && searchValid && searchShape == after.shape && searchRow == after.row
+				&& searchCol == after.col)
+			return lookAheadBoard;
+		TetrisBoard b = lookAheadBoard();
+		b.place(after.shape, after.row, after.col);
+		searchCount = removableRows(b, searchRemoved);
+		if (searchCount > 0)
+			b.removeRows(searchRemoved, searchCount);
+		searchShape = after.shape;
+		searchRow = after.row;
+		searchCol = after.col;
+		searchValid = true;
+		return b;
+	}
+	
+	/**
+	 * Takes the block placed by {@link #searchBoard(Placement)} off the
+	 * look-ahead board again
+	 */
+	private void undoSearch() {
+		if (searchCount > 0)
+			lookAheadBoard.restoreRows(searchRemoved, searchCount);
+		lookAheadBoard.clear(searchShape, searchRow, searchCol);
+		searchValid = false;
+	}
+	
+	private void lookAhead(TetrisBoard b, BlockShape shape, int r, int c, LookAhead out) {
+		long start = metrics != null ? System.nanoTime() : 0;
+		b.place(shape, r, c);
+		fillRaw(b, shape, r, c, raw);
+		boolean resting = rests(b, shape, r, c);
+		evaluate(b, shape, r, c, raw, resting, resting && r + shape.topLeftR <= verticalLimit, out);
+		b.clear(shape, r, c);
+		codec.expand(raw, out.features);
+		if (metrics != null) metrics.time(Metrics.LOOK_AHEAD, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Takes a picture of the board with the current block. Costs a copy of
+	 * one byte per cell, so a view should ask at its frame rate rather than
+	 * on every move.
+	 */
+	public BoardSnapshot snapshot() {
+		byte[] cells = cellTypes.clone();
+		if (!blockSettled)
+			stamp(cells, block, row, col);
+		return new BoardSnapshot(rows, cols, cells);
+	}
+	
+	private void settleBlock() {
+		if (blockSettled) return;
+		stamp(cellTypes, block, row, col);
+		blockSettled = true;
+	}
+	
+	private void stamp(byte[] cells, Block block, int row, int col) {
+		BlockShape shape = block.shape();
+		int[][] blockMat = shape.blockMat;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (blockMat[i][j] > 0)
+					cells[(row + i) * cols + col + j] = (byte)block.type;
+			}
+		}
+	}
+	
+	/**
+	 * Removes the rows in {@link #removedRows} from {@link #cellTypes} the way
+	 * {@link TetrisBoard#removeRows(int[], int)} does
+	 */
+	private void removeCellTypes(int count) {
+		int k = 0;
+		for (int l = rows - 1; l >= 0; l--) {
+			if (k < count && removedRows[k] == l) {
+				k++;
+			} else if (k > 0) {
+				System.arraycopy(cellTypes, l * cols, cellTypes, (l + k) * cols, cols);
+			}
+		}
+		for (int l = 1; l < count; l++) {
+			System.arraycopy(cellTypes, 0, cellTypes, l * cols, cols);
+		}
+	}
+	
+	/**
+	 * @return the board without the current block
+	 */
+	private TetrisBoard lookAheadBoard() {
+		if (!lookAheadValid) {
+			// rebuilt anyway, nothing to undo
+			searchValid = false;
+			lookAheadBoard.copyFrom(board);
+			lookAheadBoard.clear(block.shape(), row, col);
+			lookAheadValid = true;
+		} else if (searchValid) {
+			undoSearch();
+		}
+		return lookAheadBoard;
+	}
+	
+	/**
+	 * @return size of the array {@link #getPlacements(Placement[])} may need
+	 */
+	public int getMaxPlacements() {
+		return 4 * cols;
+	}
+	
+	/**
+	 * Enumerates the places the current block can come to rest at: each
+	 * orientation reachable by turning the block where it is, shifted to
+	 * every column it can slide to at its current row, then dropped. Turns
+	 * and shifts that only repeat an earlier placement, e.g. the turns of
+	 * the square block, are left out. Entries of <code>out</code> are reused
+	 * and created if <code>null</code>.
+	 * 
+	 * @return number of placements written to <code>out</code>
+	 */
+	public int getPlacements(Placement[] out) {
+		return getPlacements(lookAheadBoard(), block.type, block.getOrientation(), row, col, out);
+	}
+	
+	/**
+	 * Enumerates the placements of a block of <code>type</code> entering at
+	 * (row, col) like {@link #getPlacements(Placement[])}, on the board left
+	 * after the current block came to rest at <code>after</code> and the
+	 * rows it completed were removed. Used to search over the current and
+	 * the {@link #previewBlock() next} block.
+	 * 
+	 * @return number of placements written to <code>out</code>, 0 if the
+	 * block does not fit where it enters
+	 */
+	public int getPlacements(Placement after, int type, int row, int col, Placement[] out) {
+		TetrisBoard b = searchBoard(after);
+		if (!fitsAt(b, Block.shape(type, 0), row, col)) return 0;
+		return getPlacements(b, type, 0, row, col, out);
+	}
+	
+	private int getPlacements(TetrisBoard b, int type, int orientation, int row, int col, Placement[] out) {
+		int n = 0;
+		boolean turned = false;
+		for (int rot : PLACEMENT_ROTATIONS) {
+			BlockShape shape = Block.shape(type, orientation - rot);
+			if (rot == 2) {
+				// two quarter turns in either direction
+				if (!turned || !fitsAt(b, shape, row, col)) continue;
+			} else if (!fitsAt(b, shape, row, col)) {
+				continue;
+			} else if (rot != 0) {
+				turned = true;
+			}
+			// earlier placements covering the same cells with an equal shape
+			int same = -1;
+			for (int k = 0; k < n && same < 0; k++) {
+				if (out[k].shape.sameCells(shape)) same = k;
+			}
+			int left = col, right = col;
+			while (fitsAt(b, shape, row, left-1)) left--;
+			while (fitsAt(b, shape, row, right+1)) right++;
+			for (int c = left; c <= right; c++) {
+				int r = landingRow(b, shape, row, c);
+				if (same >= 0 && repeats(out, same, n, shape, r, c)) continue;
+				Placement p = out[n];
+				if (p == null) p = out[n] = new Placement();
+				p.rotation = rot;
+				p.orientation = shape.orientation;
+				p.shape = shape;
+				p.row = r;
+				p.col = c;
+				n++;
+			}
+		}
+		return n;
+	}
+	
+	private boolean fitsAt(TetrisBoard b, BlockShape shape, int row, int col) {
+		if (col+shape.topLeftC < 0 || col+shape.botRghtC >= cols || row+shape.botRghtR >= rows)
+			return false;
+		return b.fits(shape, row, col);
+	}
+	
+	private static boolean repeats(Placement[] out, int from, int to, BlockShape shape, int row, int col) {
+		for (int k = from; k < to; k++) {
+			Placement p = out[k];
+			if (p.row + p.shape.topLeftR == row + shape.topLeftR && p.col + p.shape.topLeftC == col + shape.topLeftC
+					&& p.shape.sameCells(shape))
+				return true;
+		}
+		return false;
+	}
+	
+	private void checkPlacement(Placement placement) {
+		if (placement.shape == null || placement.shape.type != block.type)
+			throw new IllegalArgumentException("Placement is not for the current block: " + placement);
+	}
+	
+	/**
+	 * Moves the current block straight to <code>placement</code>, which must
+	 * come from {@link #getPlacements(Placement[])} for this block. Listeners
+	 * hear of it as the action {@link #PLACE}.
+	 */
+	public boolean place(Placement placement) {
+		checkPlacement(placement);
+		if (metrics != null) metrics.count(Metrics.ACTIONS);
+		triggerBeforeAction(PLACE);
+		atBottom = false;
+		full = false;
+		this.currentState = null;
+		clearBlock(block, row, col);
+		while (block.getOrientation() != placement.orientation) {
+			block.rotateClockwise();
+		}
+		row = placement.row;
+		col = placement.col;
+		setBlock(block, row, col);
+		atBottom = true;
+		checkFull();
+		triggerAfterAction(PLACE, true);
+		return true;
+	}
+	
+	/**
+	 * Same test as {@link #reachedLowestPossible()} for any shape and
+	 * location, without touching the flags of the model.
+	 */
+	private boolean rests(TetrisBoard b, BlockShape shape, int row, int col) {
+		int[][] blockMat = shape.blockMat;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			if (row+i+1 >= rows) return true;
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (blockMat[i][j] > 0 && (i == shape.botRghtR || blockMat[i+1][j] == 0) && b.isOccupied(row+i+1, col+j))
+					return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * 
 	 * @param block
@@ -292,17 +765,16 @@ public class TetrisModel {
 	 */
 	private boolean isAllowed(int rowMove, int colMove, int rot) {
 		clearModel(block, row, col);
-		rotate(block, rot);
+		BlockShape shape = block.shape(rot);
 		boolean allowed = true;
-		if (col+colMove+block.topLeftC < 0 || col+colMove+block.botRghtC >= board[0].length) {
+		if (col+colMove+shape.topLeftC < 0 || col+colMove+shape.botRghtC >= cols) {
 			allowed = false;
-		} else if (row+rowMove+block.botRghtR >= board.length) {
+		} else if (row+rowMove+shape.botRghtR >= rows) {
 			allowed = false;
 		}else {
 			//System.out.println("New Loc: " + (row+rowMove) + ", " + (col+colMove) + " " + block + " " + board.length);
-			allowed = check(block, row+rowMove, col+colMove);
+			allowed = board.fits(shape, row+rowMove, col+colMove);
 		}
-		rotate(block, rot*-1); // revert to previous orientation
 		placeModel(block, row, col);
 		return allowed;
 	}
@@ -320,49 +792,199 @@ public class TetrisModel {
 		}
 	}
 
-	private boolean check(Block block, int row, int col) {
-		int[][] blockMat = block.blockMat;
-		for (int i = block.topLeftR; i <= block.botRghtR; i++) {
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-				if (blockMat[i][j] > 0 && board[row+i][col+j] > 0) {
-					return false;
-				}
-			}
-		}
-		return true;
-	}
-
 	private void clearModel(Block block, int row, int col) {
-		int[][] blockMat = block.blockMat;
-		for (int i = block.topLeftR; i <= block.botRghtR; i++) {
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-				if (blockMat[i][j] > 0) {
-					board[row+i][col+j] = 0;
-				}
-			}
-		}
+		board.clear(block.shape(), row, col);
 	}
 	
 	private void placeModel(Block block, int row, int col) {
-		int[][] blockMat = block.blockMat;
-		for (int i = block.topLeftR; i <= block.botRghtR; i++) {
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-				if (blockMat[i][j] > 0) {
-					board[row+i][col+j] = blockMat[i][j];
-				}
-			}
+		board.place(block.shape(), row, col);
+	}
+	
+	/**
+	 * Reseeds the piece and move streams. Two models with the same seed,
+	 * driven by planners that only draw from {@link #random(int, int)} and
+	 * {@link #randomDouble()}, play the same game.
+	 */
+	public void setSeed(long seed) {
+		seed(seed);
+		preview = -1;
+	}
+	
+	private void seed(long seed) {
+		seedRandom.setSeed(seed);
+		pieceRandom.splitFrom(seedRandom);
+		random.splitFrom(seedRandom);
+	}
+	
+	/**
+	 * @return buffers for {@link #save(ModelState)}, sized for this model
+	 * and the models forked from it
+	 */
+	public ModelState newState() {
+		return new ModelState(engine, rows, cols);
+	}
+	
+	/**
+	 * Copies the game state into <code>state</code>, in time linear in the
+	 * number of rows and without allocating
+	 */
+	public void save(ModelState state) {
+		checkSize(state.board);
+		state.board.copyFrom(board);
+		System.arraycopy(cellTypes, 0, state.cellTypes, 0, cellTypes.length);
+		state.block = block;
+		state.orientation = block != null ? block.getOrientation() : 0;
+		state.row = row;
+		state.col = col;
+		state.atBottom = atBottom;
+		state.full = full;
+		state.blockSettled = blockSettled;
+		state.preview = preview;
+		state.pieceRandom.copyFrom(pieceRandom);
+		state.random.copyFrom(random);
+		state.pieces = pieces;
+		state.piecePosition = pieces != null ? pieces.position() : 0;
+		state.source = this;
+	}
+	
+	/**
+	 * Puts the game back into <code>state</code>, which may have been saved
+	 * by another model of the same size and engine. Listeners are not told,
+	 * a view following events has to be repainted from {@link #snapshot()}.
+	 * A {@link PieceSequence} is only rewound on the model that saved the
+	 * state; other models draw from the saved piece stream instead.
+	 */
+	public void restore(ModelState state) {
+		if (state.source == null)
+			throw new IllegalStateException("Nothing saved in this state");
+		checkSize(state.board);
+		board.copyFrom(state.board);
+		System.arraycopy(state.cellTypes, 0, cellTypes, 0, cellTypes.length);
+		if (state.block == null) {
+			block = null;
+		} else if (state.source == this) {
+			block = state.block;
+			block.setOrientation(state.orientation);
+		} else {
+			block = ownBlock(state.block.type, state.orientation);
+		}
+		row = state.row;
+		col = state.col;
+		atBottom = state.atBottom;
+		full = state.full;
+		blockSettled = state.blockSettled;
+		preview = state.preview;
+		pieceRandom.copyFrom(state.pieceRandom);
+		random.copyFrom(state.random);
+		if (state.source == this && state.pieces != null) {
+			pieces = state.pieces;
+			pieces.seek(state.piecePosition);
+		}
+		invalidate();
+	}
+	
+	/**
+	 * @return a new model in the same game state that plays on independently:
+	 * no listeners, no metrics and no piece sequence, drawing from copies of
+	 * the piece and move streams. It shares the state space, so forks that
+	 * run on other threads need a {@link ConcurrentStateSpace} or a
+	 * stateless model. Reuse it with {@link #copyFrom(TetrisModel)}.
+	 */
+	public TetrisModel fork() {
+		TetrisModel fork = new TetrisModel(rows, cols, allowableDepth, allowedActions, stateless, engine, stateSpace);
+		fork.copyFrom(this);
+		return fork;
+	}
+	
+	/**
+	 * Sets the game state to the one of <code>other</code>, a model of the
+	 * same size and engine, like a {@link #fork()} but without allocating.
+	 * Listeners are not told.
+	 */
+	public void copyFrom(TetrisModel other) {
+		checkSize(other.board);
+		board.copyFrom(other.board);
+		System.arraycopy(other.cellTypes, 0, cellTypes, 0, cellTypes.length);
+		block = other.block != null ? ownBlock(other.block.type, other.block.getOrientation()) : null;
+		row = other.row;
+		col = other.col;
+		atBottom = other.atBottom;
+		full = other.full;
+		blockSettled = other.blockSettled;
+		preview = other.preview;
+		pieceRandom.copyFrom(other.pieceRandom);
+		random.copyFrom(other.random);
+		invalidate();
+	}
+	
+	private void checkSize(TetrisBoard other) {
+		if (other.rows != rows || other.cols != cols || other.getClass() != board.getClass())
+			throw new IllegalArgumentException("Game state of a " + other.rows + "x" + other.cols + " "
+					+ other.getClass().getSimpleName() + " does not fit this " + rows + "x" + cols + " model");
+	}
+	
+	/**
+	 * @return this model's own block of <code>type</code>, turned to
+	 * <code>orientation</code>, so copied states never share a block
+	 */
+	private Block ownBlock(int type, int orientation) {
+		Block own = ownBlocks[type];
+		if (own == null) {
+			own = new Block(type);
+			ownBlocks[type] = own;
 		}
+		own.setOrientation(orientation);
+		return own;
+	}
+	
+	/**
+	 * Forgets everything derived from the game state
+	 */
+	private void invalidate() {
+		currentState = null;
+		lookAheadValid = false;
+		searchValid = false;
+	}
+	
+	/**
+	 * Takes the block types returned by {@link #randomBlock()} from
+	 * <code>pieces</code> instead of the piece stream, <code>null</code> to
+	 * go back to the stream.
+	 */
+	public void setPieceSequence(PieceSequence pieces) {
+		this.pieces = pieces;
+	}
+	
+	public PieceSequence getPieceSequence() {
+		return pieces;
 	}
 	
 	public int randomCol() {
-		return random(0, board[0].length - 6);
+		return random(0, cols - 6);
 	}
 	
 	public int randomBlock() {
-		return random(0, Block.BLOCK_TEMPLATES.length - 1);
+		if (pieces != null) return pieces.next();
+		if (preview >= 0) {
+			int type = preview;
+			preview = -1;
+			return type;
+		}
+		return pieceRandom.nextInt(Block.BLOCK_TEMPLATES.length);
 		//return 6;
 	}
 	
+	/**
+	 * @return the type the next call to {@link #randomBlock()} will return,
+	 * without consuming it, so planners can look one block ahead
+	 */
+	public int previewBlock() {
+		if (pieces != null) return pieces.peek(0);
+		if (preview < 0)
+			preview = pieceRandom.nextInt(Block.BLOCK_TEMPLATES.length);
+		return preview;
+	}
+	
 	public int getRandomActionCode() {
 		return allowedActions[random(0, allowedActions.length - 1)];
 		//return random(3, 4);
@@ -379,6 +1001,7 @@ public class TetrisModel {
 	public boolean takeAction(int action) {
 		//if (debug)
 		//	System.out.println("ACTION: " + action);
+		if (metrics != null) metrics.count(Metrics.ACTIONS);
 		triggerBeforeAction(action);
 		atBottom = false;
 		full = false;
@@ -432,170 +1055,191 @@ public class TetrisModel {
 	 * @return vector with indexes corresponding to the features as mentioned above
 	 */
 	public double[] getFeatures() {
-		
-		double[] features = new double[getFeatureCount()+7+1]; // 8 numbers for debug info
-		int fIdx = 0;
+		double[] features = new double[codec.featureLength]; // 8 numbers for debug info
+		fillRaw(board, block.shape(), row, col, raw);
+		codec.expand(raw, features);
+		return features;
+	}
+	
+	/**
+	 * Collects the integers the features of {@link #getFeatures()} are derived
+	 * from, indexed as in {@link StateCodec}, for the block in <code>shape</code>
+	 * at (row, col) on <code>board</code>.
+	 */
+	private void fillRaw(TetrisBoard board, BlockShape shape, int row, int col, int[] raw) {
 		// features for top-most occupied cells in columns
-		int prevColHt = 0;
-		for (int i = 0; i < board[0].length; i++) {
-			int blockRow = block.topLeftR + row;
-			int j = block.topLeftR + row;
-			if (i >= block.topLeftC + col && i <= block.botRghtC + col) {
-				j = block.botRghtR + row;
-				int t = block.botRghtR;
-				while(t > 0 && block.blockMat[t][i-col] == 0) {
+		for (int i = 0; i < cols; i++) {
+			int blockRow = shape.topLeftR + row;
+			int j = shape.topLeftR + row;
+			if (i >= shape.topLeftC + col && i <= shape.botRghtC + col) {
+				j = shape.botRghtR + row;
+				int t = shape.botRghtR;
+				while(t > 0 && shape.blockMat[t][i-col] == 0) {
 					t--; j--;
 				}
 				j++;
 				blockRow = j;
 			}
-			for (; j < board.length && board[j][i] == 0; j++);
-			int colHt = j - blockRow;
-			features[fIdx++] = colHt;
-			if (i > 0) {
-				int diff = colHt - prevColHt;
-				features[fIdx + board[0].length - 2] = diff;
-			}
-			prevColHt = colHt;
+			j = board.firstOccupied(i, j);
+			raw[StateCodec.HEIGHTS + i] = j - blockRow;
 		}
-		fIdx += board[0].length - 1; // adjusting for column height differences
 		
 		// features for current block location
-		// ---only even number of rows so that state space may be reduced
-		features[fIdx++] = block.topLeftR + row;
-		features[fIdx++] = block.topLeftC + col;
-		
-		// features for type of block
-		features[fIdx + block.type] = 1; //block.type;
-		fIdx += Block.BLOCK_TEMPLATES.length;
-		
-		// feature for current block orientation
-		features[fIdx + block.getOrientation()] = 1; //block.getOrientation();
-		fIdx += 4; // total 4 orientations
-		
-		// bias term
-		features[fIdx++] = 1;
+		raw[StateCodec.BLOCK_ROW] = shape.topLeftR + row;
+		raw[StateCodec.BLOCK_COL] = shape.topLeftC + col;
+		raw[StateCodec.TYPE] = shape.type;
+		raw[StateCodec.ORIENTATION] = shape.orientation;
 		
 		// Number of adjacent occupied cells
 		int cRight = 0, cLeft = 0, cBottom = 0;
-		boolean isAtWellBottom = atWellBottom();
-		for (int i = block.topLeftR; i <= block.botRghtR; i++) {
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-				if (block.blockMat[i][j] > 0) {
-					if (j == block.topLeftC) {
-						if (col + block.topLeftC == 0)
+		boolean isAtWellBottom = (row + shape.botRghtR == rows - 1);
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (shape.blockMat[i][j] > 0) {
+					if (j == shape.topLeftC) {
+						if (col + shape.topLeftC == 0)
 							cLeft++;
-					} else if (block.blockMat[i][j-1] == 0 && board[row+i][col+j-1] > 0) {
+					} else if (shape.blockMat[i][j-1] == 0 && board.isOccupied(row+i, col+j-1)) {
 						cLeft++;
 					}
-					if (j == block.botRghtC) {
-						if (col + block.botRghtC == board[0].length-1)
+					if (j == shape.botRghtC) {
+						if (col + shape.botRghtC == cols-1)
 							cRight++;
-					} else if (block.blockMat[i][j+1] == 0 && board[row+i][col+j+1] > 0) {
+					} else if (shape.blockMat[i][j+1] == 0 && board.isOccupied(row+i, col+j+1)) {
 						cRight++;
 					}
 					if (isAtWellBottom) { 
-						if(i == block.botRghtR) {
+						if(i == shape.botRghtR) {
 							cBottom++;
 						}
-					} else if (i == block.blockMat.length - 1  || (block.blockMat[i+1][j] == 0 && board[row+i+1][col+j] > 0)) {
+					} else if (i == shape.blockMat.length - 1  || (shape.blockMat[i+1][j] == 0 && board.isOccupied(row+i+1, col+j))) {
 						cBottom++;
 					}
 				}
 			}
 		}
-		features[fIdx++] = cLeft;
-		features[fIdx++] = cRight;
-		features[fIdx++] = cBottom;
+		raw[StateCodec.LEFT] = cLeft;
+		raw[StateCodec.RIGHT] = cRight;
+		raw[StateCodec.BOTTOM] = cBottom;
 		
 		// Additional debug information that will not be part of the state
-		features[fIdx++] = row;
-		features[fIdx++] = col;
-		features[fIdx++] = block.type;
-		features[fIdx++] = block.getOrientation();
+		raw[StateCodec.ROW] = row;
+		raw[StateCodec.COL] = col;
 		
 		// check if a perfect fit has been found
-		double ht = features[block.topLeftC + col];
+		int ht = raw[StateCodec.HEIGHTS + shape.topLeftC + col];
 		boolean fit = true;
-		for (int j = block.topLeftC+1; j <= block.botRghtC; j++) {
-			if (features[j + col] != ht) {
+		for (int j = shape.topLeftC+1; j <= shape.botRghtC; j++) {
+			if (raw[StateCodec.HEIGHTS + j + col] != ht) {
 				fit = false;
 				break;
 			}
 		}
-		features[fIdx++] = fit ? 1 : 0;
-		
-		return features;
-		
+		raw[StateCodec.FIT] = fit ? 1 : 0;
 	}
 	
 	public State getState() {
+		if (metrics == null) return buildState();
+		long start = System.nanoTime();
+		State state = buildState();
+		metrics.time(Metrics.GET_STATE, System.nanoTime() - start);
+		return state;
+	}
+	
+	private State buildState() {
 		
 		// not caching the current state
 		//if (this.currentState != null)
 		//	return this.currentState;
 		
-		double[] features = getFeatures();
+		BlockShape shape = block.shape();
+		fillRaw(board, shape, row, col, raw);
+		codec.pack(raw, key);
 		
-		State state = stateless ? null : stateSpace.lookupState(features);
+		State state = stateless ? null : stateSpace.lookupState(key[0], key[1]);
+		if (metrics != null && !stateless) metrics.count(state != null ? Metrics.STATE_HITS : Metrics.STATE_MISSES);
 		if (state != null) return state;
 		
 		double[] actionRewards = new double[NUM_ACTIONS_ALLOWED];
-		state = new State(features, false, 0, this.numFeatures, getRandomActionCode(), actionRewards);
-		if (reachedLowestPossible()) {
-			state.completedRows = getRowsCompleted();
-			if (state.completedRows[0] == 0) {
+		int policy = getRandomActionCode();
+		boolean resting = reachedLowestPossible();
+		evaluate(board, shape, row, col, raw, resting, full, evaluation);
+		state = new State(codec, key[0], key[1], evaluation.terminalState, evaluation.stateReward, policy, actionRewards);
+		if (resting)
+			state.completedRows = evaluation.completedRows.clone();
+		state.rewardsForFull = evaluation.rewardsForFull;
+		// another model sharing the state space may have added it meanwhile
+		if (!stateless) state = stateSpace.lookupState(state, true);
+		
+		return state;
+		
+	}
+	
+	/**
+	 * Fills <code>out</code> with the current state, exactly as {@link #getState()}
+	 * would evaluate it, without allocating and without consulting the state space.
+	 */
+	public void getState(LookAhead out) {
+		long start = metrics != null ? System.nanoTime() : 0;
+		BlockShape shape = block.shape();
+		fillRaw(board, shape, row, col, raw);
+		boolean resting = reachedLowestPossible();
+		evaluate(board, shape, row, col, raw, resting, full, out);
+		codec.expand(raw, out.features);
+		if (metrics != null) metrics.time(Metrics.GET_STATE, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Rewards of the block in <code>shape</code> at (row, col) on <code>board</code>,
+	 * whose raw features have been collected in <code>raw</code>. Fills in
+	 * everything in <code>out</code> but the features.
+	 */
+	private void evaluate(TetrisBoard board, BlockShape shape, int row, int col, int[] raw, boolean resting, boolean full, LookAhead out) {
+		out.resting = resting;
+		out.terminalState = false;
+		out.rewardsForFull = 0;
+		out.completedRows[0] = 0;
+		out.completedRows[1] = 0;
+		out.stateReward = 0;
+		if (resting) {
+			getRowsCompleted(board, out.completedRows);
+			if (out.completedRows[0] == 0) {
 				// if there were completed rows that may be compressed,
 				// then the board is not full
 				if (full) {
-					state.rewardsForFull = getRewardForFull();
-					state.terminalState = true;
+					out.rewardsForFull = getRewardForFull(board);
+					out.terminalState = true;
 				}
 			}
-			state.stateReward = 20*state.completedRows[1] + state.rewardsForFull;
+			out.stateReward = 20*out.completedRows[1] + out.rewardsForFull;
 			
 			// Rewards for misfit
 			double misfitReward = 0;
-			if (state.features[state.features.length-1] == 0) {
-				for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-					int ht = (int)features[col + j];
-					for (int i = block.botRghtR; i >= block.topLeftR; i--) {
-						if (block.blockMat[i][j] > 0) { 
-							for (int l = row+i+1; l < board.length; l++) {
-								//System.out.println("ht: " + ht);
-								if (board[l][col+j] > 0) break;
+			if (raw[StateCodec.FIT] == 0) {
+				for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+					for (int i = shape.botRghtR; i >= shape.topLeftR; i--) {
+						if (shape.blockMat[i][j] > 0) { 
+							int end = board.firstOccupied(col+j, row+i+1);
+							for (int l = row+i+1; l < end; l++) {
 								misfitReward += rewards[l][col+j];
 							}
 							break; // we reached the topmost occupied cell in the block
-						} else {
-							continue;
 						}
-//						if (board[row+i][col+j] == 0) {
-//							// this location below the block was unoccupied
-//							//misfitReward += rewards[board.length-1-(row+i)][col+j];
-//							misfitReward += rewards[(row+i)][col+j];
-//						}
-						//state.stateReward = state.stateReward + rewards[row+block.topLeftR+ht][col+j];
 					}
 				}
-				state.stateReward -= misfitReward;
+				out.stateReward -= misfitReward;
 			}
 		}
 		// reward for lower rows reached
-		state.stateReward += rewards[board.length - (block.topLeftR+(int)state.features[state.features.length-5])-1][0];
+		out.stateReward += rewards[rows - (shape.topLeftR+raw[StateCodec.ROW])-1][0];
 		
 		// Rewards for fit
-		if (state.features[state.features.length-1] == 1) {
-			int ht = (int)features[block.topLeftC + col];
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-				//if (features[j + col] == 0)
-					state.stateReward = state.stateReward + rewards[row+block.topLeftR+ht][col+j];
+		if (raw[StateCodec.FIT] == 1) {
+			int ht = raw[StateCodec.HEIGHTS + shape.topLeftC + col];
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				out.stateReward = out.stateReward + rewards[row+shape.topLeftR+ht][col+j];
 			}
 		}
-		if (!stateless) stateSpace.lookupState(state, true);
-		
-		return state;
-		
 	}
 	
 	/**
@@ -605,10 +1249,11 @@ public class TetrisModel {
 	 * @return
 	 */
 	private double getPositionRewards() {
+		BlockShape shape = block.shape();
 		double reward = 0;
-		for (int i = block.topLeftR; i <= block.botRghtR; i++) {
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
-				if (block.blockMat[i][j] > 0) {
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
+				if (shape.blockMat[i][j] > 0) {
 					reward += rewards[row+i][col+j];
 				}
 			}
@@ -624,52 +1269,64 @@ public class TetrisModel {
 	 */
 	public double[] getRowsCompleted() {
 		double[] rowRewards = new double[2];
-		for (int i = board.length - 1; i >= verticalLimit; i--) {
-			boolean filled = true;
-			double reward = 0;
-			for (int j = 0; j < board[0].length; j++) {
-				if (board[i][j] == 0) {
-					filled = false; 
-					break;
-				} else
-					reward += rewards[i][j];
-			}
-			if (filled) {
+		getRowsCompleted(board, rowRewards);
+		return rowRewards;
+	}
+	
+	private void getRowsCompleted(TetrisBoard board, double[] rowRewards) {
+		if (board.filledRows() == 0) return;
+		for (int i = rows - 1; i >= verticalLimit; i--) {
+			if (board.isRowFilled(i)) {
 				rowRewards[0] = rowRewards[0]+1;
-				rowRewards[1] = rowRewards[1]+reward;
+				rowRewards[1] = rowRewards[1]+rowRewards(i);
 			}
 		}
-		return rowRewards;
+	}
+	
+	/**
+	 * @return sum of the rewards of all cells in the row
+	 */
+	private double rowRewards(int row) {
+		double reward = 0;
+		for (int j = 0; j < cols; j++) {
+			reward += rewards[row][j];
+		}
+		return reward;
 	}
 
 	public int compressRowsCompleted() {
-		int rows = 0;
-		for (int i = board.length - 1; i >= verticalLimit; i--) {
-			boolean filled = true;
-			for (int j = 0; j < board[0].length; j++) {
-				if (board[i][j] == 0) {
-					filled = false; 
-					break;
-				}
-			}
-			if (filled) {
-				rows = rows+1;
-				for (int j = 0; j < board[0].length; j++) {
-					for (int l = i; l > 0; l--) {
-						board[l][j] = board[l-1][j];
-					}
-				}
-				triggerCompressed(i);
-				i++; // check this row again
-			}
-		}
+		int rows = removableRows(board, removedRows);
 		if (rows > 0) {
+			board.removeRows(removedRows, rows);
+			settleBlock();
+			removeCellTypes(rows);
+			lookAheadValid = false;
 			//atBottom = true; // we will leave atBottom flag as is 
 			full = false;
+			triggerCompressed(rows);
 		}
 		return rows;
 	}
 
+	/**
+	 * Collects the filled rows {@link #compressRowsCompleted()} removes,
+	 * bottom up
+	 * 
+	 * @return number of rows written to <code>removed</code>
+	 */
+	private int removableRows(TetrisBoard board, int[] removed) {
+		if (board.filledRows() == 0) return 0;
+		int rows = 0;
+		// a row above the limit is checked if enough rows below it are removed
+		// to bring it down into the allowed depth
+		for (int i = this.rows - 1; i >= 0 && i + rows >= verticalLimit; i--) {
+			if (board.isRowFilled(i)) {
+				removed[rows++] = i;
+			}
+		}
+		return rows;
+	}
+	
 	/**
 	 * Rewards will be collected when the board is full. We return the
 	 * negated sum of all blank holes on board.
@@ -677,54 +1334,133 @@ public class TetrisModel {
 	 * @return
 	 */
 	public double getRewardForFull() {
+		return getRewardForFull(board);
+	}
+	
+	private double getRewardForFull(TetrisBoard board) {
+		// the reward of a cell only depends on its row
 		double reward = 0;
 		for (int i = verticalLimit; i < rewards.length; i++) {
-			for (int j = 0; j < rewards[i].length; j++) {
-				if (board[i][j] == 0) {
-					reward += rewards[i][j];
-				}
-			}
+			reward += rewards[i][0] * (cols - board.rowFill(i));
 		}
 		//System.out.println("Reward for full board: " + reward);
 		return -reward;
 	}
 	
+	/**
+	 * @return number of empty cells below the topmost occupied cell of their
+	 * column, counting the falling block as occupied
+	 */
+	public int getHoles() {
+		return board.holes();
+	}
+	
+	/**
+	 * @return height of the column above the floor, counting the falling
+	 * block as occupied
+	 */
+	public int getColumnHeight(int col) {
+		return rows - board.firstOccupied(col, 0);
+	}
+	
 	public int random(int start, int end) {
 		return start + random.nextInt(end - start + 1);
 	}
 	
+	/**
+	 * @return uniform value in [0, 1) from the move stream
+	 */
+	public double randomDouble() {
+		return random.nextDouble();
+	}
+	
+	/**
+	 * Registers <code>listener</code> for all events
+	 */
 	public void addListener(TetrisListener listener) {
-		this.listeners.add(listener);
+		addListener(listener, TetrisListener.ALL_EVENTS);
+	}
+	
+	/**
+	 * Registers <code>listener</code> for the events in <code>events</code>,
+	 * a mask of the event constants of {@link TetrisListener}. Events nobody
+	 * registered for cost nothing to fire, so learners should leave out the
+	 * ones they ignore, e.g. {@link TetrisListener#BLOCK_SET} which fires on
+	 * every move.
+	 */
+	public void addListener(TetrisListener listener, int events) {
+		if ((events & ~TetrisListener.ALL_EVENTS) != 0)
+			throw new IllegalArgumentException("Unknown events: " + events);
+		if ((events & TetrisListener.BLOCK_SET) != 0) setBlockListeners = add(setBlockListeners, listener);
+		if ((events & TetrisListener.BLOCK_CLEARED) != 0) clearBlockListeners = add(clearBlockListeners, listener);
+		if ((events & TetrisListener.ROUND_STARTED) != 0) startListeners = add(startListeners, listener);
+		if ((events & TetrisListener.BEFORE_ACTION) != 0) beforeActionListeners = add(beforeActionListeners, listener);
+		if ((events & TetrisListener.AFTER_ACTION) != 0) afterActionListeners = add(afterActionListeners, listener);
+		if ((events & TetrisListener.COMPRESSED) != 0) compressedListeners = add(compressedListeners, listener);
+		if ((events & TetrisListener.RESET) != 0) resetListeners = add(resetListeners, listener);
+	}
+	
+	/**
+	 * Unregisters <code>listener</code> from all events
+	 */
+	public void removeListener(TetrisListener listener) {
+		setBlockListeners = remove(setBlockListeners, listener);
+		clearBlockListeners = remove(clearBlockListeners, listener);
+		startListeners = remove(startListeners, listener);
+		beforeActionListeners = remove(beforeActionListeners, listener);
+		afterActionListeners = remove(afterActionListeners, listener);
+		compressedListeners = remove(compressedListeners, listener);
+		resetListeners = remove(resetListeners, listener);
+	}
+	
+	private static TetrisListener[] add(TetrisListener[] listeners, TetrisListener listener) {
+		TetrisListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+		added[listeners.length] = listener;
+		return added;
+	}
+	
+	private static TetrisListener[] remove(TetrisListener[] listeners, TetrisListener listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				if (listeners.length == 1) return NO_LISTENERS;
+				TetrisListener[] removed = new TetrisListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+				return removed;
+			}
+		}
+		return listeners;
 	}
 	
 	private void triggerBeforeAction(int action) {
-		if (listeners != null)
-			for (TetrisListener listener : listeners)
-				listener.beforeAction(action);
+		for (TetrisListener listener : beforeActionListeners)
+			listener.beforeAction(action);
 	}
 
 	private void triggerAfterAction(int action, boolean success) {
-		if (listeners != null)
-			for (TetrisListener listener : listeners)
-				listener.afterAction(action, success);
+		for (TetrisListener listener : afterActionListeners)
+			listener.afterAction(action, success);
 	}
 
 	private void triggerStart() {
-		if (listeners != null)
-			for (TetrisListener listener : listeners)
-				listener.startRound();
+		for (TetrisListener listener : startListeners)
+			listener.startRound();
 	}
 	
-	private void triggerCompressed(int row) {
-		if (listeners != null)
-			for (TetrisListener listener : listeners)
-				listener.compressed(row);
+	/**
+	 * Passes the first <code>count</code> removed rows, copied only when
+	 * somebody listens
+	 */
+	private void triggerCompressed(int count) {
+		if (compressedListeners.length == 0) return;
+		int[] rows = Arrays.copyOf(removedRows, count);
+		for (TetrisListener listener : compressedListeners)
+			listener.compressed(rows);
 	}
 	
 	private void triggerReset() {
-		if (listeners != null)
-			for (TetrisListener listener : listeners)
-				listener.reset();
+		for (TetrisListener listener : resetListeners)
+			listener.reset();
 	}
 	
 	public void debugOn() {
@@ -762,6 +1498,9 @@ public class TetrisModel {
 		case MOVE_DOWN:
 			str = "MOVE_DOWN";
 			break;
+		case PLACE:
+			str = "PLACE";
+			break;
 		}
 		return str;
 	}
@@ -0,0 +1,216 @@
+package com.smd.tetris;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trains {@link TetrisApproxQLearner} weights on several boards at once. Each
+ * worker thread owns its own {@link TetrisModel} and learner; the workers
+ * take epochs from a common budget until it is used up.
+ * <p>
+ * With {@link #SYNC_HOGWILD} all learners update one shared weight vector
+ * without locking. With {@link #SYNC_AVERAGE} every learner trains its own
+ * copy and the copies are averaged into the shared vector after every
+ * <code>syncEvery</code> epochs per worker.
+ */
+public class TetrisParallelTrainer {
+
+	/** Lock-free updates to a single shared weight vector */
+	public static final int SYNC_HOGWILD = 0;
+	/** Private weights per worker, averaged periodically */
+	public static final int SYNC_AVERAGE = 1;
+
+	private final int rows;
+	private final int cols;
+	private final int allowableDepth;
+	private final int[] allowedActions;
+	private final int engine;
+	private final int threads;
+	private final int syncMode;
+	private final int syncEvery;
+	private final int startCol;
+	private final int maxBlocks;
+
+	private final double[] weights;
+	private double[][] workerWeights;
+	// source of per-worker seeds, unseeded workers if null
+	private SplittableRandom seeds = null;
+
+	private final AtomicInteger remaining = new AtomicInteger();
+	private volatile boolean done = false;
+	private volatile Throwable failure = null;
+
+	private long blocks = 0;
+	private long rowsCompressed = 0;
+	private long moves = 0;
+
+	public TetrisParallelTrainer(int rows, int cols, int allowableDepth, int[] allowedActions, int engine,
+			int threads, int syncMode, int syncEvery, int maxBlocks) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		if (syncMode != SYNC_HOGWILD && syncMode != SYNC_AVERAGE)
+			throw new IllegalArgumentException("Unknown sync mode: " + syncMode);
+		if (syncEvery < 1)
+			throw new IllegalArgumentException("syncEvery must be positive");
+		this.rows = rows;
+		this.cols = cols;
+		this.allowableDepth = allowableDepth;
+		this.allowedActions = allowedActions;
+		this.engine = engine;
+		this.threads = threads;
+		this.syncMode = syncMode;
+		this.syncEvery = syncEvery;
+		this.startCol = cols / 2 - 2;
+		this.maxBlocks = maxBlocks;
+		this.weights = new double[new StateCodec(rows, cols).numFeatures];
+	}
+
+	/**
+	 * Gives every worker its own seeded stream derived from <code>seed</code>.
+	 * Pieces and moves per worker are then repeatable, but with several
+	 * threads the order of weight updates is not.
+	 */
+	public void setSeed(long seed) {
+		this.seeds = new SplittableRandom(seed);
+	}
+
+	/**
+	 * Plays <code>epochs</code> games spread over the worker threads and
+	 * blocks until all of them are finished. Can be called repeatedly to
+	 * continue training the same weights.
+	 *
+	 * @return the combined weights
+	 */
+	public double[] train(int epochs) {
+		remaining.set(epochs);
+		done = false;
+		failure = null;
+		workerWeights = new double[threads][];
+		final CyclicBarrier barrier = syncMode == SYNC_AVERAGE ? new CyclicBarrier(threads, new Runnable() {
+			public void run() {
+				average();
+			}
+		}) : null;
+
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			double[] w = weights;
+			if (syncMode == SYNC_AVERAGE) {
+				w = weights.clone();
+				workerWeights[i] = w;
+			}
+			workers[i] = new Worker(i, w, barrier);
+			if (seeds != null) workers[i].tetris.setSeed(seeds.nextLong());
+			workers[i].start();
+		}
+		for (Worker worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while training", e);
+			}
+			blocks += worker.blocks;
+			rowsCompressed += worker.rowsCompressed;
+			moves += worker.moves;
+		}
+		if (failure != null)
+			throw new RuntimeException("Training worker failed", failure);
+		return weights;
+	}
+
+	/**
+	 * Runs inside the barrier, while every worker is waiting
+	 */
+	private void average() {
+		for (int j = 0; j < weights.length; j++) {
+			double sum = 0;
+			for (double[] w : workerWeights) {
+				sum += w[j];
+			}
+			weights[j] = sum / workerWeights.length;
+		}
+		for (double[] w : workerWeights) {
+			System.arraycopy(weights, 0, w, 0, weights.length);
+		}
+		if (remaining.get() <= 0) done = true;
+	}
+
+	private class Worker extends Thread {
+
+		private final TetrisModel tetris;
+		private final TetrisApproxQLearner learner;
+		private final CyclicBarrier barrier;
+
+		long blocks = 0;
+		long rowsCompressed = 0;
+		long moves = 0;
+
+		Worker(int id, double[] featureWeights, CyclicBarrier barrier) {
+			super("tetris-trainer-" + id);
+			this.tetris = new TetrisModel(rows, cols, allowableDepth, allowedActions, true, engine);
+			this.learner = new TetrisApproxQLearner(tetris, allowedActions, featureWeights);
+			this.barrier = barrier;
+		}
+
+		public void run() {
+			try {
+				if (barrier == null) {
+					while (remaining.getAndDecrement() > 0 && failure == null) {
+						playEpoch();
+					}
+				} else {
+					while (!done) {
+						for (int i = 0; i < syncEvery && remaining.getAndDecrement() > 0; i++) {
+							playEpoch();
+						}
+						barrier.await();
+					}
+				}
+			} catch (BrokenBarrierException e) {
+				// another worker failed
+			} catch (InterruptedException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure = e;
+				if (barrier != null) barrier.reset();
+			}
+		}
+
+		private void playEpoch() {
+			learner.resetCounts();
+			moves += TetrisRunner.playEpoch(tetris, learner, startCol, maxBlocks);
+			blocks += learner.getBlocksAccommodated();
+			rowsCompressed += learner.getRowsCompressed();
+		}
+	}
+
+	/**
+	 * @return a learner on <code>model</code> playing greedily with a copy of
+	 * the combined weights
+	 */
+	public TetrisApproxQLearner combinedPolicy(TetrisModel model) {
+		TetrisApproxQLearner policy = new TetrisApproxQLearner(model, allowedActions, weights.clone());
+		policy.stopTrainingMode();
+		return policy;
+	}
+
+	public double[] getWeights() {
+		return weights;
+	}
+
+	public long getBlocks() {
+		return blocks;
+	}
+
+	public long getRowsCompressed() {
+		return rowsCompressed;
+	}
+
+	public long getMoves() {
+		return moves;
+	}
+
+}
@@ -1,7 +1,5 @@
 package com.smd.tetris;
 
-import java.util.Random;
-
 import static com.smd.tetris.TetrisModel.*;
 
 public class TetrisQLearner implements TetrisListener, Planner {
@@ -28,6 +26,7 @@ public class TetrisQLearner implements TetrisListener, Planner {
 	int numTimeSteps = 0;
 	
 	private final int[] allowedActions;
+	private final double[] actionRewards = new double[TetrisModel.NUM_ACTIONS_ALLOWED];
 	
 	protected int rowsCompressed = 0;
 	protected int blocksAccommodated = 0;
@@ -43,7 +42,7 @@ public class TetrisQLearner implements TetrisListener, Planner {
 		this.temperature = temperature;
 		this.exploration_policy = exploration_policy;
 		this.allowedActions = allowedActions;
-		model.addListener(this);
+		model.addListener(this, ROUND_STARTED | AFTER_ACTION | COMPRESSED | RESET);
 	}
 	
 	public void blockAtBottom(Block block) {
@@ -78,20 +77,20 @@ public class TetrisQLearner implements TetrisListener, Planner {
 			if (tetris.reachedLowestPossible()) {
 					completedRows = tetris.getRowsCompleted();
 					if (completedRows[0] > 0) {
-						System.out.println("Found completed rows: " + completedRows[0] + ", reward: " + completedRows[1]);
-						state.stateReward = completedRows[1];
+						if (debug)
+							System.out.println("Found completed rows: " + completedRows[0] + ", reward: " + completedRows[1]);
+						state.setStateReward(completedRows[1]);
 					} else {
 						if (tetris.isFull())
-							state.stateReward = tetris.getRewardForFull();
+							state.setStateReward(tetris.getRewardForFull());
 					}
 			}
 			if (stateBeforeAction != null) { // && stateBeforeAction.compareTo(state) != 0) {
-				actionReward = 
-					stateBeforeAction.getActionReward(proposedAction) + learningRate * (
-						stateBeforeAction.stateReward + decay * state.getBestReward()
-							- stateBeforeAction.getActionReward(proposedAction)
-					);
-				stateBeforeAction.setActionReward(proposedAction, actionReward);
+				Metrics metrics = tetris.getMetrics();
+				long start = metrics != null ? System.nanoTime() : 0;
+				actionReward = stateBeforeAction.updateActionReward(proposedAction, learningRate,
+						stateBeforeAction.getStateReward() + decay * state.getBestReward());
+				if (metrics != null) metrics.time(Metrics.WEIGHT_UPDATE, System.nanoTime() - start);
 				if (completedRows != null && completedRows[0] > 0) {
 					tetris.compressRowsCompleted();
 				}
@@ -133,7 +132,7 @@ public class TetrisQLearner implements TetrisListener, Planner {
 				proposedAction = getBoltzmanExplorationAction(state);
 			} else {
 				// GLIE1
-				double rnd = random.nextDouble();
+				double rnd = tetris.randomDouble();
 				if (rnd < epsilon) {
 					int act = tetris.random(0, allowedActions.length-1);
 					proposedAction = allowedActions[act];
@@ -146,13 +145,14 @@ public class TetrisQLearner implements TetrisListener, Planner {
 	
 	private int getBoltzmanExplorationAction(State state) {
 		double sum = 0;
-		double[] actionRewards = state.getActionRewards();
+		double[] actionRewards = this.actionRewards;
+		state.getActionRewards(actionRewards);
 		double[] vals = new double[allowedActions.length];
 		for (int i = 0; i < vals.length; i++) {
 			vals[i] = Math.exp(actionRewards[allowedActions[i]] / temperature);
 			sum += vals[i];
 		}
-		double prob = random.nextDouble();
+		double prob = tetris.randomDouble();
 		int action = tetris.getRandomActionCode();
 		for (int i = 0; i < allowedActions.length; i++) {
 			vals[i] = vals[i] / sum + (i == 0 ? 0.0 : vals[i-1]); // cumulative
@@ -192,14 +192,12 @@ public class TetrisQLearner implements TetrisListener, Planner {
 		this.debug = false;
 	}
 	
-	private final Random random = new Random();
-
 	public boolean isInTrainingMode() {
 		return this.trainMode;
 	}
 
-	public void compressed(int rows) {
-		rowsCompressed += rows;
+	public void compressed(int[] rows) {
+		rowsCompressed += rows.length;
 	}
 	
 	public int getBlocksAccommodated() {
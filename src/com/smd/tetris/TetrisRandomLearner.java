@@ -1,6 +1,6 @@
 package com.smd.tetris;
 
-public class TetrisRandomLearner implements TetrisListener, Planner {
+public class TetrisRandomLearner implements TetrisListener, PlacementPlanner {
 	
 	private final TetrisModel tetris;
 	
@@ -9,7 +9,7 @@ public class TetrisRandomLearner implements TetrisListener, Planner {
 	
 	public TetrisRandomLearner(TetrisModel model) {
 		this.tetris = model;
-		model.addListener(this);
+		model.addListener(this, ROUND_STARTED | COMPRESSED | RESET);
 	}
 	
 	public void blockAtBottom(Block block) {
@@ -44,6 +44,10 @@ public class TetrisRandomLearner implements TetrisListener, Planner {
 		return tetris.getRandomActionCode();
 	}
 	
+	public int proposePlacement(Placement[] placements, int count) {
+		return tetris.random(0, count - 1);
+	}
+	
 	public void dispState() {
 		State state = tetris.getState();
 		System.out.println(state.toString());
@@ -76,8 +80,8 @@ public class TetrisRandomLearner implements TetrisListener, Planner {
 		return false;
 	}
 
-	public void compressed(int rows) {
-		rowsCompressed += rows;
+	public void compressed(int[] rows) {
+		rowsCompressed += rows.length;
 	}
 
 	public int getBlocksAccommodated() {
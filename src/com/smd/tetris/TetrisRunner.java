@@ -0,0 +1,650 @@
+package com.smd.tetris;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.smd.tetris.TetrisModel.*;
+
+/**
+ * Headless training loop. Drives a {@link TetrisModel} with a {@link Planner}
+ * for a fixed number of epochs without touching any AWT/Swing classes, so
+ * it can run on machines with no display.
+ *
+ * <pre>
+ * java -cp ./tetris.jar com.smd.tetris.TetrisRunner --epochs 5000 --learner approx
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ * <li>--rows n : playable board height (default 20)</li>
+ * <li>--cols n : board width (default 10)</li>
+ * <li>--epochs n : number of games to play (default 3000)</li>
+ * <li>--learner random|q|approx|beam|cem : planner to train (default approx). The beam
+ * planner ({@link TetrisBeamPlanner}) does not learn; it searches with the weights given
+ * by --load, or with the model's rewards. cem fits approx weights with the
+ * {@link TetrisCrossEntropyTrainer}, one generation per epoch.</li>
+ * <li>--engine array|bitboard : board storage (default bitboard)</li>
+ * <li>--max-blocks n : end a game after n blocks, 0 for no limit (default 0, 1000 for cem)</li>
+ * <li>--report n : print averages every n epochs, 0 to disable (default 100)</li>
+ * <li>--threads n : train on n boards in parallel (default 1, all processors for cem). Approx
+ * learners share weights, q learners share one {@link ConcurrentStateSpace}.</li>
+ * <li>--sync hogwild|average : how parallel approx workers share weights (default hogwild)</li>
+ * <li>--sync-every n : epochs per worker between averaging steps (default 10)</li>
+ * <li>--eval n : after training, play n seeded games with the trained policy and print per game
+ * statistics, see {@link TetrisEvaluation} (default 0). Not supported for the q learner.</li>
+ * <li>--eval-threads n : threads playing the evaluation games (default all processors)</li>
+ * <li>--eval-seed n : seed of the evaluation game seeds (default 1)</li>
+ * <li>--seed n : seed for pieces and moves, so runs can be repeated (default unseeded)</li>
+ * <li>--mode step|placement : ask the planner for a move per time step, or for the final
+ * placement of each block (default step). Placement mode needs the random or approx learner.</li>
+ * <li>--replay n : train the approx learner from an off-heap {@link ReplayBuffer} of n
+ * transitions, 0 for online updates (default 0)</li>
+ * <li>--batch n : transitions per replayed mini-batch (default 32)</li>
+ * <li>--load file : start from a {@link Checkpoint}, the weights of the approx learner or
+ * the memory-mapped state space of the q learner</li>
+ * <li>--save file : write a {@link Checkpoint} after training</li>
+ * <li>--metrics file : stream {@link Metrics} to file, CSV if it ends in .csv, JSON lines
+ * otherwise (see {@link MetricsLog})</li>
+ * <li>--metrics-every n : epochs between metrics lines (default 100)</li>
+ * <li>--beam-width n : placements of the current block the beam planner expands (default 8)</li>
+ * <li>--budget-us n : microseconds per beam planner decision, 0 for no limit (default 0)</li>
+ * <li>--population n : weight vectors cem samples per generation (default 100)</li>
+ * <li>--elite n : best candidates cem refits to (default 10)</li>
+ * <li>--games n : games each cem candidate plays per generation (default 4)</li>
+ * <li>--record file : write every game to a {@link GameRecorder} log</li>
+ * <li>--record-compression n : deflate level of the log from 1 to 9, 0 for none (default 0)</li>
+ * <li>--play-log file : instead of training, replay a recorded log at full speed with
+ * {@link GameReplayer}</li>
+ * </ul>
+ */
+public class TetrisRunner {
+
+	private static final int V_BOUNDARY = 5;
+	private static final int CEM_MAX_BLOCKS = 1000;
+
+	private static final int[] ALLOWED_ACTIONS = {
+		DO_NOTHING, MOVE_LEFT, MOVE_RIGHT, ROT_CLOCK, ROT_COUNTER_CLOCK, DROP
+	};
+
+	private int rows = 20;
+	private int cols = 10;
+	private int epochs = 3000;
+	private String learnerName = "approx";
+	private int engine = ENGINE_BITBOARD;
+	private int maxBlocks = -1;
+	private int reportEvery = 100;
+	private int threads = 0;
+	private int syncMode = TetrisParallelTrainer.SYNC_HOGWILD;
+	private int syncEvery = 10;
+	private int evalEpochs = 0;
+	private int evalThreads = Runtime.getRuntime().availableProcessors();
+	private long evalSeed = 1;
+	private Long seed = null;
+	private boolean placementMode = false;
+	private int replayCapacity = 0;
+	private int replayBatch = 32;
+	private File loadFile = null;
+	private File saveFile = null;
+	private File metricsFile = null;
+	private int metricsEvery = 100;
+	private int beamWidth = TetrisBeamPlanner.DEFAULT_WIDTH;
+	private long budgetMicros = 0;
+	private int population = TetrisCrossEntropyTrainer.DEFAULT_POPULATION;
+	private int elite = TetrisCrossEntropyTrainer.DEFAULT_ELITE;
+	private int games = TetrisCrossEntropyTrainer.DEFAULT_GAMES;
+	private File recordFile = null;
+	private int recordCompression = 0;
+	private File playLogFile = null;
+
+	private TetrisModel tetris;
+	private Planner learner;
+	private int startCol;
+	private Placement[] placements;
+	// weights the beam planner searches with, null for the model's rewards
+	private double[] beamWeights;
+
+	private long moves = 0;
+
+	public static void main(String[] args) {
+		TetrisRunner runner = new TetrisRunner();
+		try {
+			runner.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: TetrisRunner [--rows n] [--cols n] [--epochs n] [--learner random|q|approx|beam|cem]"
+					+ " [--engine array|bitboard] [--max-blocks n] [--report n]"
+					+ " [--threads n] [--sync hogwild|average] [--sync-every n] [--eval n] [--eval-threads n]"
+					+ " [--eval-seed n] [--seed n]"
+					+ " [--mode step|placement] [--replay n] [--batch n] [--load file] [--save file]"
+					+ " [--metrics file] [--metrics-every n] [--beam-width n] [--budget-us n]"
+					+ " [--population n] [--elite n] [--games n] [--record file] [--record-compression n]"
+					+ " [--play-log file]");
+			System.exit(1);
+		}
+		try {
+			runner.run();
+		} catch (IOException e) {
+			System.err.println("Checkpoint, metrics or game log failed: " + e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private void parseArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i+1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+			String value = args[++i];
+			if ("--rows".equals(arg)) {
+				rows = parsePositive(arg, value);
+			} else if ("--cols".equals(arg)) {
+				cols = parsePositive(arg, value);
+			} else if ("--epochs".equals(arg)) {
+				epochs = parsePositive(arg, value);
+			} else if ("--learner".equals(arg)) {
+				if (!"random".equals(value) && !"q".equals(value) && !"approx".equals(value) && !"beam".equals(value)
+						&& !"cem".equals(value))
+					throw new IllegalArgumentException("Unknown learner: " + value);
+				learnerName = value;
+			} else if ("--engine".equals(arg)) {
+				if ("array".equals(value)) engine = ENGINE_ARRAY;
+				else if ("bitboard".equals(value)) engine = ENGINE_BITBOARD;
+				else throw new IllegalArgumentException("Unknown engine: " + value);
+			} else if ("--max-blocks".equals(arg)) {
+				maxBlocks = parseInt(arg, value);
+			} else if ("--report".equals(arg)) {
+				reportEvery = parseInt(arg, value);
+			} else if ("--threads".equals(arg)) {
+				threads = parsePositive(arg, value);
+			} else if ("--sync".equals(arg)) {
+				if ("hogwild".equals(value)) syncMode = TetrisParallelTrainer.SYNC_HOGWILD;
+				else if ("average".equals(value)) syncMode = TetrisParallelTrainer.SYNC_AVERAGE;
+				else throw new IllegalArgumentException("Unknown sync mode: " + value);
+			} else if ("--sync-every".equals(arg)) {
+				syncEvery = parsePositive(arg, value);
+			} else if ("--eval".equals(arg)) {
+				evalEpochs = parseInt(arg, value);
+			} else if ("--eval-threads".equals(arg)) {
+				evalThreads = parsePositive(arg, value);
+			} else if ("--eval-seed".equals(arg)) {
+				evalSeed = parseLong(arg, value);
+			} else if ("--seed".equals(arg)) {
+				seed = parseLong(arg, value);
+			} else if ("--mode".equals(arg)) {
+				if ("step".equals(value)) placementMode = false;
+				else if ("placement".equals(value)) placementMode = true;
+				else throw new IllegalArgumentException("Unknown mode: " + value);
+			} else if ("--replay".equals(arg)) {
+				replayCapacity = parseInt(arg, value);
+			} else if ("--batch".equals(arg)) {
+				replayBatch = parsePositive(arg, value);
+			} else if ("--load".equals(arg)) {
+				loadFile = new File(value);
+			} else if ("--save".equals(arg)) {
+				saveFile = new File(value);
+			} else if ("--metrics".equals(arg)) {
+				metricsFile = new File(value);
+			} else if ("--metrics-every".equals(arg)) {
+				metricsEvery = parsePositive(arg, value);
+			} else if ("--beam-width".equals(arg)) {
+				beamWidth = parsePositive(arg, value);
+			} else if ("--budget-us".equals(arg)) {
+				budgetMicros = parseInt(arg, value);
+			} else if ("--population".equals(arg)) {
+				population = parsePositive(arg, value);
+			} else if ("--elite".equals(arg)) {
+				elite = parsePositive(arg, value);
+			} else if ("--games".equals(arg)) {
+				games = parsePositive(arg, value);
+			} else if ("--record".equals(arg)) {
+				recordFile = new File(value);
+			} else if ("--record-compression".equals(arg)) {
+				recordCompression = parseInt(arg, value);
+				if (recordCompression > 9)
+					throw new IllegalArgumentException(arg + " must be between 0 and 9");
+			} else if ("--play-log".equals(arg)) {
+				playLogFile = new File(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		if (cols < 4)
+			throw new IllegalArgumentException("--cols must be at least 4");
+		boolean cem = "cem".equals(learnerName);
+		if (threads == 0)
+			threads = cem ? Runtime.getRuntime().availableProcessors() : 1;
+		if (maxBlocks < 0)
+			maxBlocks = cem ? CEM_MAX_BLOCKS : 0;
+		if (cem && maxBlocks == 0)
+			throw new IllegalArgumentException("--max-blocks must be positive for cem");
+		if (cem && elite > population)
+			throw new IllegalArgumentException("--elite must not exceed --population");
+		if (cem && (placementMode || replayCapacity > 0 || metricsFile != null))
+			throw new IllegalArgumentException("--mode, --replay and --metrics are not supported for cem, it always places");
+		if (threads > 1 && ("random".equals(learnerName) || "beam".equals(learnerName)))
+			throw new IllegalArgumentException("--threads is not supported for the " + learnerName + " learner");
+		if (placementMode && "q".equals(learnerName))
+			throw new IllegalArgumentException("--mode placement is not supported for the q learner");
+		if (placementMode && threads > 1)
+			throw new IllegalArgumentException("--mode placement is not supported with --threads");
+		if (replayCapacity > 0 && !"approx".equals(learnerName))
+			throw new IllegalArgumentException("--replay is only supported for the approx learner");
+		if (replayCapacity > 0 && threads > 1)
+			throw new IllegalArgumentException("--replay is not supported with --threads");
+		if ((loadFile != null || saveFile != null) && "random".equals(learnerName))
+			throw new IllegalArgumentException("--load and --save are not supported for the random learner");
+		if (saveFile != null && "beam".equals(learnerName))
+			throw new IllegalArgumentException("--save is not supported for the beam planner, it does not learn");
+		if ((loadFile != null || saveFile != null) && threads > 1 && !cem)
+			throw new IllegalArgumentException("--load and --save are not supported with --threads");
+		if (metricsFile != null && threads > 1)
+			throw new IllegalArgumentException("--metrics is not supported with --threads");
+		if (recordFile != null && (threads > 1 || cem))
+			throw new IllegalArgumentException("--record is not supported with --threads or for cem");
+		if (evalEpochs > 0 && "q".equals(learnerName))
+			throw new IllegalArgumentException("--eval is not supported for the q learner");
+	}
+
+	private static int parseInt(String arg, String value) {
+		try {
+			int v = Integer.parseInt(value);
+			if (v < 0) throw new IllegalArgumentException(arg + " must not be negative: " + value);
+			return v;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(arg + " expects a number: " + value);
+		}
+	}
+
+	private static long parseLong(String arg, String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(arg + " expects a number: " + value);
+		}
+	}
+
+	private static int parsePositive(String arg, String value) {
+		int v = parseInt(arg, value);
+		if (v == 0) throw new IllegalArgumentException(arg + " must be positive");
+		return v;
+	}
+
+	private void init() throws IOException {
+		StateCodec codec = new StateCodec(rows + V_BOUNDARY, cols);
+		if ("q".equals(learnerName)) {
+			// the tabular learner keeps its values in the model's state space
+			StateSpace stateSpace = loadFile != null ? loadStateSpace(codec) : null;
+			tetris = new TetrisModel(rows + V_BOUNDARY, cols, rows, ALLOWED_ACTIONS, engine, stateSpace);
+		} else {
+			tetris = new TetrisModel(rows + V_BOUNDARY, cols, rows, ALLOWED_ACTIONS, true, engine);
+		}
+		if (seed != null) tetris.setSeed(seed);
+		if ("random".equals(learnerName)) {
+			learner = new TetrisRandomLearner(tetris);
+		} else if ("q".equals(learnerName)) {
+			learner = new TetrisQLearner(tetris, ALLOWED_ACTIONS);
+		} else if ("beam".equals(learnerName)) {
+			beamWeights = loadFile != null ? loadWeights(codec) : null;
+			StateEvaluator evaluator = beamWeights != null ? TetrisBeamPlanner.weights(beamWeights) : TetrisBeamPlanner.REWARD;
+			learner = new TetrisBeamPlanner(tetris, evaluator, beamWidth, budgetMicros * 1000, cols / 2 - 2);
+		} else {
+			double[] weights = loadFile != null ? loadWeights(codec) : new double[codec.numFeatures];
+			TetrisApproxQLearner approx = new TetrisApproxQLearner(tetris, ALLOWED_ACTIONS, weights);
+			if (replayCapacity > 0)
+				approx.setReplayBuffer(new ReplayBuffer(replayCapacity, tetris.numFeatures), replayBatch);
+			learner = approx;
+		}
+		learner.debugOff();
+		learner.startTrainingMode();
+		startCol = cols / 2 - 2;
+		placements = new Placement[tetris.getMaxPlacements()];
+	}
+
+	/**
+	 * Reads the weights in {@link #loadFile}, naming it when its board size
+	 * or feature layout do not match
+	 */
+	private double[] loadWeights(StateCodec codec) throws IOException {
+		try {
+			return Checkpoint.loadWeights(loadFile, codec);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Checkpoint rejected: " + e.getMessage(), e);
+		}
+	}
+
+	private StateSpace loadStateSpace(StateCodec codec) throws IOException {
+		try {
+			return Checkpoint.mapStateSpace(loadFile, codec);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Checkpoint rejected: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Writes the weights or the state space learned so far to <code>file</code>
+	 */
+	private void save(File file) throws IOException {
+		if (learner instanceof TetrisApproxQLearner)
+			Checkpoint.saveWeights(file, tetris.getCodec(), ((TetrisApproxQLearner)learner).getFeatureWeights());
+		else
+			Checkpoint.saveStateSpace(file, tetris.getCodec(), tetris.stateSpace);
+	}
+
+	public void run() throws IOException {
+		if (playLogFile != null) {
+			playLog();
+			return;
+		}
+		if ("cem".equals(learnerName)) {
+			runCrossEntropy();
+			return;
+		}
+		if (threads > 1 && "q".equals(learnerName)) {
+			runParallelQ();
+			return;
+		}
+		if (threads > 1) {
+			runParallel();
+			return;
+		}
+		init();
+		System.out.println("Training " + learnerName + " on " + rows + "x" + cols + " for " + epochs + " epochs"
+				+ (placementMode ? " in placement mode" : ""));
+
+		Metrics metrics = null;
+		MetricsLog metricsLog = null;
+		if (metricsFile != null) {
+			metrics = new Metrics();
+			metricsLog = new MetricsLog(metricsFile);
+			tetris.setMetrics(metrics);
+		}
+		GameRecorder recorder = recordFile != null ? new GameRecorder(tetris, recordFile, recordCompression) : null;
+
+		long totalBlocks = 0;
+		long totalRows = 0;
+		double averageBlocks = 0;
+		double averageRowsCompressed = 0;
+		long start = System.nanoTime();
+		try {
+			for (int epoch = 0; epoch < epochs; epoch++) {
+				learner.resetCounts();
+				long epochStart = metrics != null ? System.nanoTime() : 0;
+				runEpoch();
+				int blocks = learner.getBlocksAccommodated();
+				int compressed = learner.getRowsCompressed();
+				if (metrics != null) {
+					metrics.time(Metrics.EPOCH, System.nanoTime() - epochStart);
+					metrics.count(Metrics.EPOCHS);
+					metrics.add(Metrics.BLOCKS, blocks);
+					metrics.add(Metrics.ROWS, compressed);
+					if ((epoch + 1) % metricsEvery == 0 || epoch + 1 == epochs)
+						metricsLog.write(metrics, epoch + 1, tetris.stateSpace.size());
+				}
+				totalBlocks += blocks;
+				totalRows += compressed;
+				averageBlocks += blocks;
+				averageRowsCompressed += compressed;
+				if (reportEvery > 0 && (epoch + 1) % reportEvery == 0) {
+					System.out.println("Epoch: " + (epoch + 1) + ", Average blocks: " + (averageBlocks / reportEvery)
+							+ ", Average rows compressed: " + (averageRowsCompressed / reportEvery));
+					averageBlocks = 0;
+					averageRowsCompressed = 0;
+				}
+			}
+		} finally {
+			if (metricsLog != null) metricsLog.close();
+			if (recorder != null) recorder.close();
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+
+		System.out.println("Epochs: " + epochs + ", blocks: " + totalBlocks + ", rows compressed: " + totalRows
+				+ ", moves: " + moves);
+		System.out.println(String.format("Elapsed: %.3f s, %.1f epochs/sec, %.1f moves/sec",
+				secs, epochs / secs, moves / secs));
+		if (tetris.stateSpace.size() > 0)
+			System.out.println("Total states: " + tetris.stateSpace.size());
+		if (learner instanceof TetrisBeamPlanner) {
+			TetrisBeamPlanner beam = (TetrisBeamPlanner)learner;
+			System.out.println(String.format("Searched %d states, %.1f per decision",
+					beam.getNodesSearched(), (double)beam.getNodesSearched() / Math.max(1, beam.getDecisions())));
+		}
+		if (saveFile != null) {
+			save(saveFile);
+			System.out.println("Saved " + saveFile);
+		}
+		if (evalEpochs > 0)
+			evaluate(policy(), placementMode);
+	}
+
+	/**
+	 * @return factory of planners playing like the trained one without
+	 * learning any further
+	 */
+	private PlannerFactory policy() {
+		if (learner instanceof TetrisApproxQLearner)
+			return TetrisEvaluation.frozen(ALLOWED_ACTIONS, ((TetrisApproxQLearner)learner).getFeatureWeights().clone());
+		if (learner instanceof TetrisBeamPlanner) {
+			final double[] weights = beamWeights;
+			return new PlannerFactory() {
+				public Planner create(TetrisModel model) {
+					StateEvaluator evaluator = weights != null ? TetrisBeamPlanner.weights(weights) : TetrisBeamPlanner.REWARD;
+					return new TetrisBeamPlanner(model, evaluator, beamWidth, budgetMicros * 1000, cols / 2 - 2);
+				}
+			};
+		}
+		return new PlannerFactory() {
+			public Planner create(TetrisModel model) {
+				return new TetrisRandomLearner(model);
+			}
+		};
+	}
+
+	/**
+	 * Plays the evaluation games with <code>policy</code> and prints the
+	 * statistics over them
+	 */
+	private void evaluate(PlannerFactory policy, boolean placement) {
+		TetrisEvaluation evaluation = new TetrisEvaluation(rows + V_BOUNDARY, cols, rows, ALLOWED_ACTIONS, engine,
+				evalThreads, maxBlocks, placement);
+		TetrisEvaluation.Result result = evaluation.evaluate(policy, evalSeed, evalEpochs);
+		System.out.println("Evaluated the " + (placement ? "placement " : "") + "policy with " + evalThreads
+				+ " threads");
+		System.out.println(result);
+	}
+
+	private void runParallel() {
+		System.out.println("Training " + learnerName + " on " + rows + "x" + cols + " for " + epochs + " epochs with "
+				+ threads + " threads");
+		TetrisParallelTrainer trainer = new TetrisParallelTrainer(rows + V_BOUNDARY, cols, rows, ALLOWED_ACTIONS, engine,
+				threads, syncMode, syncEvery, maxBlocks);
+		if (seed != null) trainer.setSeed(seed);
+		long start = System.nanoTime();
+		trainer.train(epochs);
+		double secs = (System.nanoTime() - start) / 1e9;
+		
+		System.out.println("Epochs: " + epochs + ", blocks: " + trainer.getBlocks() + ", rows compressed: "
+				+ trainer.getRowsCompressed() + ", moves: " + trainer.getMoves());
+		System.out.println(String.format("Elapsed: %.3f s, %.1f epochs/sec, %.1f moves/sec",
+				secs, epochs / secs, trainer.getMoves() / secs));
+		
+		if (evalEpochs > 0)
+			evaluate(TetrisEvaluation.frozen(ALLOWED_ACTIONS, trainer.getWeights().clone()), false);
+	}
+
+	/**
+	 * Replays {@link #playLogFile} on a model of the size it was recorded on
+	 */
+	private void playLog() throws IOException {
+		GameReplayer replayer = new GameReplayer(playLogFile);
+		try {
+			tetris = new TetrisModel(replayer.getRows(), replayer.getCols(), replayer.getRows() - V_BOUNDARY,
+					ALLOWED_ACTIONS, true, engine);
+			System.out.println("Replaying " + playLogFile + " on " + (replayer.getRows() - V_BOUNDARY) + "x"
+					+ replayer.getCols());
+			long start = System.nanoTime();
+			replayer.replay(tetris);
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.println("Games: " + replayer.getGames() + ", blocks: " + replayer.getBlocks() + ", rows compressed: "
+					+ replayer.getRowsCompressed() + ", moves: " + replayer.getMoves());
+			System.out.println(String.format("Elapsed: %.3f s, %.1f games/sec, %.1f moves/sec",
+					secs, replayer.getGames() / secs, replayer.getMoves() / secs));
+		} finally {
+			replayer.close();
+		}
+	}
+
+	/**
+	 * Cross-entropy search for approx weights, one generation per epoch,
+	 * reported after each unless reports are off
+	 */
+	private void runCrossEntropy() throws IOException {
+		System.out.println("Searching approx weights on " + rows + "x" + cols + " for " + epochs + " generations of "
+				+ population + " x " + games + " games with " + threads + " threads");
+		TetrisCrossEntropyTrainer trainer = new TetrisCrossEntropyTrainer(rows + V_BOUNDARY, cols, rows, ALLOWED_ACTIONS,
+				engine, threads, population, elite, games, maxBlocks);
+		StateCodec codec = new StateCodec(rows + V_BOUNDARY, cols);
+		if (loadFile != null) trainer.setMean(loadWeights(codec));
+		if (seed != null) trainer.setSeed(seed);
+		long start = System.nanoTime();
+		try {
+			for (int generation = 0; generation < epochs; generation++) {
+				long generationStart = System.nanoTime();
+				trainer.nextGeneration();
+				double secs = (System.nanoTime() - generationStart) / 1e9;
+				if (reportEvery > 0)
+					System.out.println(String.format("Generation: %d, mean rows: %.1f, elite rows: %.1f, best rows: %.1f,"
+							+ " stdev: %.3f, %.1f games/sec", generation + 1, trainer.getMeanFitness(),
+							trainer.getEliteFitness(), trainer.getBestFitness(), trainer.getMeanStdev(),
+							population * games / secs));
+			}
+		} finally {
+			trainer.shutdown();
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+
+		System.out.println("Games: " + trainer.getGamesPlayed() + ", blocks: " + trainer.getBlocks());
+		System.out.println(String.format("Elapsed: %.3f s, %.1f games/sec, %.1f blocks/sec",
+				secs, trainer.getGamesPlayed() / secs, trainer.getBlocks() / secs));
+		if (saveFile != null) {
+			Checkpoint.saveWeights(saveFile, codec, trainer.getWeights());
+			System.out.println("Saved " + saveFile);
+		}
+		if (evalEpochs > 0)
+			evaluate(TetrisEvaluation.frozen(ALLOWED_ACTIONS, trainer.getWeights().clone()), true);
+	}
+
+	/**
+	 * Tabular Q-learning with one model and learner per thread, all updating
+	 * the same concurrent state space
+	 */
+	private void runParallelQ() {
+		System.out.println("Training " + learnerName + " on " + rows + "x" + cols + " for " + epochs + " epochs with "
+				+ threads + " threads");
+		final StateSpace stateSpace = new ConcurrentStateSpace(new StateCodec(rows + V_BOUNDARY, cols), threads * 16);
+		final AtomicInteger remaining = new AtomicInteger(epochs);
+		final AtomicLong totalBlocks = new AtomicLong();
+		final AtomicLong totalRows = new AtomicLong();
+		final AtomicLong totalMoves = new AtomicLong();
+		final int startCol = cols / 2 - 2;
+		SplittableRandom seeds = seed != null ? new SplittableRandom(seed) : null;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final TetrisModel model = new TetrisModel(rows + V_BOUNDARY, cols, rows, ALLOWED_ACTIONS, engine, stateSpace);
+			if (seeds != null) model.setSeed(seeds.nextLong());
+			final TetrisQLearner worker = new TetrisQLearner(model, ALLOWED_ACTIONS);
+			workers[i] = new Thread("tetris-q-" + i) {
+				public void run() {
+					while (remaining.getAndDecrement() > 0) {
+						worker.resetCounts();
+						totalMoves.addAndGet(playEpoch(model, worker, startCol, maxBlocks));
+						totalBlocks.addAndGet(worker.getBlocksAccommodated());
+						totalRows.addAndGet(worker.getRowsCompressed());
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while training", e);
+			}
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		
+		System.out.println("Epochs: " + epochs + ", blocks: " + totalBlocks.get() + ", rows compressed: "
+				+ totalRows.get() + ", moves: " + totalMoves.get());
+		System.out.println(String.format("Elapsed: %.3f s, %.1f epochs/sec, %.1f moves/sec",
+				secs, epochs / secs, totalMoves.get() / secs));
+		System.out.println("Total states: " + stateSpace.size());
+	}
+
+	private void runEpoch() {
+		if (placementMode)
+			moves += playPlacementEpoch(tetris, (PlacementPlanner)learner, placements, startCol, maxBlocks);
+		else
+			moves += playEpoch(tetris, learner, startCol, maxBlocks);
+	}
+
+	/**
+	 * Plays one game until the board is full or <code>maxBlocks</code> blocks
+	 * have been dropped (0 for no limit).
+	 * 
+	 * @return number of moves proposed by the planner
+	 */
+	static long playEpoch(TetrisModel tetris, Planner learner, int startCol, int maxBlocks) {
+		long moves = 0;
+		tetris.reset();
+		int blocks = 0;
+		while (!tetris.isFull() && (maxBlocks == 0 || blocks < maxBlocks)) {
+			tetris.newBlock(new Block(tetris.randomBlock()), 0, startCol);
+			blocks++;
+			while (!tetris.reachedLowestPossible()) {
+				tetris.takeAction(learner.proposeAction());
+				tetris.takeAction(MOVE_DOWN);
+				moves++;
+			}
+		}
+		return moves;
+	}
+
+	/**
+	 * Plays one game like {@link #playEpoch(TetrisModel, Planner, int, int)},
+	 * asking the planner once per block where to place it.
+	 * 
+	 * @param placements buffer of {@link TetrisModel#getMaxPlacements()} entries
+	 * @return number of placements proposed by the planner
+	 */
+	static long playPlacementEpoch(TetrisModel tetris, PlacementPlanner learner, Placement[] placements, int startCol,
+			int maxBlocks) {
+		long moves = 0;
+		tetris.reset();
+		int blocks = 0;
+		while (!tetris.isFull() && (maxBlocks == 0 || blocks < maxBlocks)) {
+			tetris.newBlock(new Block(tetris.randomBlock()), 0, startCol);
+			blocks++;
+			int count = tetris.getPlacements(placements);
+			if (count == 0) {
+				// the new block overlaps the stack, it stays where it is
+				tetris.takeAction(DROP);
+				continue;
+			}
+			tetris.place(placements[learner.proposePlacement(placements, count)]);
+			tetris.compressRowsCompleted();
+			moves++;
+		}
+		return moves;
+	}
+
+}
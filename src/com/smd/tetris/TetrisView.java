@@ -20,13 +20,31 @@ public class TetrisView extends JFrame implements TetrisListener {
 	private TetrisViewListener listener;
 	private boolean disableView = false;
 	
+	// snapshot rendering, see TetrisView(TetrisModel, int)
+	private SnapshotPanel snapshotPanel;
+	private long frameNanos;
+	private long nextFrame;
+	
 	public TetrisView(TetrisModel model) {
 		this(model, false);
 	}
 	public TetrisView(TetrisModel model, boolean dispRewardsOnly) {
+		this(model, dispRewardsOnly, 0);
+	}
+	/**
+	 * View that paints the whole board from a {@link BoardSnapshot} on the
+	 * event thread instead of updating a label per cell on every move. The
+	 * model is photographed at most <code>framesPerSecond</code> times a
+	 * second; the game is never slowed down and frames the screen cannot
+	 * keep up with are dropped.
+	 */
+	public TetrisView(TetrisModel model, int framesPerSecond) {
+		this(model, false, framesPerSecond);
+	}
+	private TetrisView(TetrisModel model, boolean dispRewardsOnly, int framesPerSecond) {
+		if (framesPerSecond < 0)
+			throw new IllegalArgumentException("Frames per second must not be negative: " + framesPerSecond);
 		this.model = model;
-		JPanel board = new JPanel(new GridLayout(model.rows, model.cols));
-		grid = new JLabel[model.rows][model.cols];
 		JFrame j = new JFrame("Tetris - " + model.rows + "," + model.cols);
 		this.frame = j;
 		
@@ -39,27 +57,35 @@ public class TetrisView extends JFrame implements TetrisListener {
 			colorIcons[i] = new ImageIcon("images/c" + i + ".gif");
 		}
 		
-		double[][] rewards = model.getRewards();
-		for (int i = 0; i < model.rows; i++) {
-			for (int a = 0; a < model.cols; a++) {
-				JLabel blankLabel = null;
-				if (!dispRewardsOnly) {
-					blankLabel = new JLabel("", blankIcon, JLabel.CENTER);
-				} else {
-					Formatter formatter = new Formatter(new StringBuilder());
-					String reward = formatter.format(" %2.1f ", rewards[i][a]).toString();
-					blankLabel = new JLabel(reward, null, JLabel.CENTER);
+		if (framesPerSecond > 0) {
+			frameNanos = 1000000000L / framesPerSecond;
+			snapshotPanel = new SnapshotPanel();
+			c.add(snapshotPanel, BorderLayout.SOUTH);
+		} else {
+			JPanel board = new JPanel(new GridLayout(model.rows, model.cols));
+			grid = new JLabel[model.rows][model.cols];
+			double[][] rewards = model.getRewards();
+			for (int i = 0; i < model.rows; i++) {
+				for (int a = 0; a < model.cols; a++) {
+					JLabel blankLabel = null;
+					if (!dispRewardsOnly) {
+						blankLabel = new JLabel("", blankIcon, JLabel.CENTER);
+					} else {
+						Formatter formatter = new Formatter(new StringBuilder());
+						String reward = formatter.format(" %2.1f ", rewards[i][a]).toString();
+						blankLabel = new JLabel(reward, null, JLabel.CENTER);
+					}
+					if (i == model.verticalLimit) {
+						blankLabel.setBorder(LineBorder.createGrayLineBorder());
+					} else {
+						blankLabel.setBorder(null);
+					}
+					grid[i][a] = blankLabel;
+					board.add(grid[i][a]);
 				}
-				if (i == model.verticalLimit) {
-					blankLabel.setBorder(LineBorder.createGrayLineBorder());
-				} else {
-					blankLabel.setBorder(null);
-				}
-				grid[i][a] = blankLabel;
-				board.add(grid[i][a]);
 			}
+			c.add(board, BorderLayout.SOUTH);
 		}
-		c.add(board, BorderLayout.SOUTH);
 		
 		// Add the retry button
 		JButton retry = new JButton("Retry");
@@ -81,7 +107,30 @@ public class TetrisView extends JFrame implements TetrisListener {
 		        System.exit(0); 
 		    }
 		});
-		model.addListener(this);
+		model.addListener(this, events());
+	}
+	
+	private int events() {
+		return snapshotPanel != null ? AFTER_ACTION | COMPRESSED : BLOCK_SET | BLOCK_CLEARED | COMPRESSED;
+	}
+	
+	/**
+	 * @return whether the view paints snapshots, so moves need not wait for it
+	 */
+	public boolean paintsSnapshots() {
+		return snapshotPanel != null;
+	}
+	
+	/**
+	 * Hands a new snapshot to the event thread unless the last one was taken
+	 * less than a frame ago
+	 */
+	private void publish(boolean force) {
+		long now = System.nanoTime();
+		if (!force && now - nextFrame < 0) return;
+		nextFrame = now + frameNanos;
+		snapshotPanel.latest = model.snapshot();
+		snapshotPanel.repaint();
 	}
 	
 	private void resetNotify() {
@@ -96,6 +145,10 @@ public class TetrisView extends JFrame implements TetrisListener {
 	
 	public void resetGrid() {
 		if (disableView) return;
+		if (snapshotPanel != null) {
+			publish(true);
+			return;
+		}
 		for (int i = 0; i < grid.length; i++) {
 			for (int a = 0; a < grid[i].length; a++) {
 				grid[i][a].setIcon(blankIcon);
@@ -103,11 +156,25 @@ public class TetrisView extends JFrame implements TetrisListener {
 		}
 	}
 	
-	public void compressed(int row) {
+	public void compressed(int[] rows) {
 		if (disableView) return;
-		for (int j = 0; j < grid[row].length; j++) {
-			for (int l = row; l > 0; l--) {
-				grid[l][j].setIcon(grid[l-1][j].getIcon());
+		if (snapshotPanel != null) {
+			publish(false);
+			return;
+		}
+		// every remaining row moves once, by the number of removed rows below it
+		for (int j = 0; j < grid[0].length; j++) {
+			Icon top = grid[0][j].getIcon();
+			int k = 0;
+			for (int l = grid.length - 1; l >= 0; l--) {
+				if (k < rows.length && rows[k] == l) {
+					k++;
+				} else if (k > 0) {
+					grid[l + k][j].setIcon(grid[l][j].getIcon());
+				}
+			}
+			for (int l = 0; l < rows.length; l++) {
+				grid[l][j].setIcon(top);
 			}
 		}
 	}
@@ -120,11 +187,12 @@ public class TetrisView extends JFrame implements TetrisListener {
 	}
 	
 	private void setBlock(Block block, int color, int row, int col) {
-		if (disableView) return;
+		if (disableView || grid == null) return;
 		ImageIcon icon = (color == -1 ? blankIcon : colorIcons[color]);
-		int[][] blockMat = block.blockMat;
-		for (int i = block.topLeftR; i <= block.botRghtR; i++) {
-			for (int j = block.topLeftC; j <= block.botRghtC; j++) {
+		BlockShape shape = block.shape();
+		int[][] blockMat = shape.blockMat;
+		for (int i = shape.topLeftR; i <= shape.botRghtR; i++) {
+			for (int j = shape.topLeftC; j <= shape.botRghtC; j++) {
 				if (blockMat[i][j] > 0) {
 					grid[row+i][col+j].setIcon(icon);
 				}
@@ -145,7 +213,8 @@ public class TetrisView extends JFrame implements TetrisListener {
 	}
 
 	public void afterAction(int action, boolean success) {
-		// do nothing
+		if (!disableView && snapshotPanel != null)
+			publish(false);
 	}
 
 	public void beforeAction(int action) {
@@ -153,7 +222,7 @@ public class TetrisView extends JFrame implements TetrisListener {
 	}
 
 	public void dispRewards() {
-		if (disableView) return;
+		if (disableView || grid == null) return;
 		double[][] rewards = model.getRewards();
 		for (int i = 0; i < rewards.length; i++) {
 			for (int a = 0; a < rewards[i].length; a++) {
@@ -174,11 +243,61 @@ public class TetrisView extends JFrame implements TetrisListener {
 	public boolean isViewEnabled() {
 		return !this.disableView;
 	}
+	/**
+	 * Stops drawing; the view also stops listening to the model, so moves
+	 * cost nothing while it is disabled
+	 */
 	public void disableView() {
+		if (disableView) return;
 		this.disableView  = true;
+		model.removeListener(this);
 	}
 	public void enableView() {
+		if (!disableView) return;
 		this.disableView  = false;
+		model.addListener(this, events());
+		if (snapshotPanel != null)
+			publish(true);
+	}
+	
+	/**
+	 * Paints the latest snapshot. Only the newest one is kept and Swing
+	 * coalesces repaints requested while one is pending, so frames the event
+	 * thread has no time for are dropped.
+	 */
+	private class SnapshotPanel extends JComponent {
+		
+		private volatile BoardSnapshot latest;
+		private final int cellWidth;
+		private final int cellHeight;
+		
+		SnapshotPanel() {
+			cellWidth = blankIcon.getIconWidth() > 0 ? blankIcon.getIconWidth() : 16;
+			cellHeight = blankIcon.getIconHeight() > 0 ? blankIcon.getIconHeight() : 16;
+			setPreferredSize(new Dimension(model.cols * cellWidth, model.rows * cellHeight));
+			setOpaque(true);
+		}
+		
+		protected void paintComponent(Graphics g) {
+			BoardSnapshot snapshot = latest;
+			for (int i = 0; i < model.rows; i++) {
+				for (int a = 0; a < model.cols; a++) {
+					int type = snapshot != null ? snapshot.cell(i, a) : BoardSnapshot.EMPTY;
+					ImageIcon icon = type == BoardSnapshot.EMPTY ? blankIcon : colorIcons[type];
+					int x = a * cellWidth, y = i * cellHeight;
+					if (icon.getIconWidth() > 0) {
+						icon.paintIcon(this, g, x, y);
+					} else {
+						// images not found, plain colors
+						g.setColor(type == BoardSnapshot.EMPTY ? Color.WHITE : Color.getHSBColor(type / 7f, 0.8f, 0.9f));
+						g.fillRect(x, y, cellWidth, cellHeight);
+					}
+				}
+			}
+			g.setColor(Color.GRAY);
+			g.drawRect(0, model.verticalLimit * cellHeight, model.cols * cellWidth - 1, cellHeight - 1);
+		}
+		
 	}
 	
 }